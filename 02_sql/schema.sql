@@ -17,19 +17,23 @@ DROP TYPE IF EXISTS SCORE_T;
 CREATE TABLE users (
 	userid SERIAL PRIMARY KEY,
 	username VARCHAR(30) UNIQUE NOT NULL CHECK(char_length(username) > 3),
-	password CHAR(34) NOT NULL, /* MD5-based crypt */
+	password VARCHAR(128) NOT NULL, /* PBKDF2 (see PasswordHasher), or MD5-based crypt for old rows */
 	email VARCHAR(50) UNIQUE NOT NULL,
 	reg_date TIMESTAMP NOT NULL,
-	has_avatar BOOLEAN NOT NULL DEFAULT FALSE
+	has_avatar BOOLEAN NOT NULL DEFAULT FALSE,
+	session_generation INTEGER NOT NULL DEFAULT 0 /* bumped on logout, revokes signed session tokens */
 );
 
 CREATE TABLE userlogin (
 	userid INTEGER PRIMARY KEY,
 	token bytea,
+	expires_at TIMESTAMPTZ NOT NULL, /* extended on use, see session_ttl */
 
 	FOREIGN KEY (userid) REFERENCES users(userid)
 );
 
+CREATE INDEX ON userlogin (expires_at); /* expired session sweeper */
+
 CREATE TABLE video (
 	video_id SERIAL PRIMARY KEY,
 	userid INTEGER NOT NULL, /* video owner */
@@ -39,11 +43,18 @@ CREATE TABLE video (
 	duration INTEGER NOT NULL CHECK (duration > 0) /* unit: seconds */,
 	upload_date TIMESTAMP NOT NULL,
 	total_watch INTEGER NOT NULL DEFAULT 0,
+	likes INTEGER NOT NULL DEFAULT 0, /* maintained by triggers on video_score */
+	dislikes INTEGER NOT NULL DEFAULT 0,
+	search_vector TSVECTOR GENERATED ALWAYS AS (
+		setweight(to_tsvector('english', name), 'A') ||
+		setweight(to_tsvector('english', description), 'B')) STORED,
 
 	FOREIGN KEY (userid) REFERENCES users(userid)
 );
 
 CREATE INDEX ON video (name);
+CREATE INDEX ON video USING GIN (search_vector); /* full-text search */
+CREATE INDEX ON video (userid, upload_date DESC, video_id DESC); /* user videos page */
 
 CREATE TABLE channel (
 	channel_id SERIAL PRIMARY KEY,
@@ -51,11 +62,16 @@ CREATE TABLE channel (
 	name VARCHAR(50) NOT NULL,
 	description TEXT NOT NULL,
 	creation_date TIMESTAMP NOT NULL,
+	search_vector TSVECTOR GENERATED ALWAYS AS (
+		setweight(to_tsvector('english', name), 'A') ||
+		setweight(to_tsvector('english', description), 'B')) STORED,
 
 	FOREIGN KEY (userid) REFERENCES users(userid)
 );
 
 CREATE INDEX ON channel (name);
+CREATE INDEX ON channel USING GIN (search_vector); /* full-text search */
+CREATE INDEX ON channel (userid, channel_id); /* user channels page */
 
 CREATE TABLE channel_subscription (
 	channel_id INTEGER,
@@ -66,6 +82,9 @@ CREATE TABLE channel_subscription (
 	FOREIGN KEY (channel_id) REFERENCES channel(channel_id) ON DELETE CASCADE
 );
 
+/* subscribers page uses the primary key */
+CREATE INDEX ON channel_subscription (userid, channel_id); /* subscribed channels page */
+
 /* check video owner = channel owner */
 CREATE OR REPLACE FUNCTION is_eq_vid_chnl_owner(vid_id INTEGER, chl_id INTEGER) RETURNS BOOLEAN AS $$
 	BEGIN
@@ -84,6 +103,8 @@ CREATE TABLE channel_video (
 	CHECK (is_eq_vid_chnl_owner(video_id, channel_id) = TRUE)
 );
 
+CREATE INDEX ON channel_video (channel_id, video_id DESC); /* channel videos page */
+
 CREATE TABLE comments (
 	comment_id SERIAL PRIMARY KEY,
 	userid INTEGER NOT NULL,
@@ -91,12 +112,16 @@ CREATE TABLE comments (
 	parent_id INTEGER,
 	comment TEXT NOT NULL,
 	submit_date TIMESTAMP NOT NULL,
+	likes INTEGER NOT NULL DEFAULT 0, /* maintained by triggers on comment_score */
+	dislikes INTEGER NOT NULL DEFAULT 0,
 
 	FOREIGN KEY (video_id) REFERENCES video(video_id) ON DELETE CASCADE,
 	FOREIGN KEY (userid) REFERENCES users(userid),
 	FOREIGN KEY (parent_id) REFERENCES comments(comment_id) ON DELETE SET NULL
 );
 
+CREATE INDEX ON comments (video_id, submit_date DESC, comment_id DESC); /* video comments page */
+
 CREATE TYPE SCORE_T AS ENUM('like','dislike');
 
 CREATE TABLE video_score (
@@ -124,12 +149,15 @@ CREATE TABLE playlist (
 	userid INTEGER NOT NULL,
 	name VARCHAR(50) NOT NULL,
 	is_public BOOLEAN NOT NULL DEFAULT FALSE,
+	search_vector TSVECTOR GENERATED ALWAYS AS (to_tsvector('english', name)) STORED,
 
 	UNIQUE(userid, name),
 	FOREIGN KEY (userid) REFERENCES users(userid)
 );
 
 CREATE INDEX ON playlist (name);
+CREATE INDEX ON playlist USING GIN (search_vector) WHERE is_public; /* full-text search */
+CREATE INDEX ON playlist (userid, list_id); /* user playlists page */
 
 CREATE TABLE playlist_video (
 	list_id INTEGER NOT NULL,
@@ -140,6 +168,8 @@ CREATE TABLE playlist_video (
 	FOREIGN KEY (video_id) REFERENCES video(video_id)
 );
 
+/* playlist videos page uses the primary key */
+
 /* triggers [begin] */
 
 /* create default playlist */
@@ -180,6 +210,113 @@ CREATE TRIGGER chnl_dlt BEFORE DELETE ON channel
 FOR EACH ROW
 EXECUTE PROCEDURE delete_channel_videos();
 
+/* keep video.likes/dislikes in sync with video_score */
+CREATE OR REPLACE FUNCTION count_video_score() RETURNS TRIGGER AS
+$$
+BEGIN
+	IF (TG_OP = 'INSERT') THEN
+		UPDATE video SET
+		likes = likes + (new.score = 'like')::INTEGER,
+		dislikes = dislikes + (new.score = 'dislike')::INTEGER
+		WHERE video_id = new.video_id;
+	ELSIF (TG_OP = 'UPDATE') THEN
+		UPDATE video SET
+		likes = likes + (new.score = 'like')::INTEGER - (old.score = 'like')::INTEGER,
+		dislikes = dislikes + (new.score = 'dislike')::INTEGER - (old.score = 'dislike')::INTEGER
+		WHERE video_id = new.video_id;
+	ELSE
+		UPDATE video SET
+		likes = likes - (old.score = 'like')::INTEGER,
+		dislikes = dislikes - (old.score = 'dislike')::INTEGER
+		WHERE video_id = old.video_id;
+	END IF;
+
+	RETURN NULL;
+
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER vid_score_cnt AFTER INSERT OR DELETE ON video_score
+FOR EACH ROW
+EXECUTE PROCEDURE count_video_score();
+
+CREATE TRIGGER vid_score_chg AFTER UPDATE OF score ON video_score
+FOR EACH ROW
+WHEN (old.score IS DISTINCT FROM new.score)
+EXECUTE PROCEDURE count_video_score();
+
+/* keep comments.likes/dislikes in sync with comment_score */
+CREATE OR REPLACE FUNCTION count_comment_score() RETURNS TRIGGER AS
+$$
+BEGIN
+	IF (TG_OP = 'INSERT') THEN
+		UPDATE comments SET
+		likes = likes + (new.score = 'like')::INTEGER,
+		dislikes = dislikes + (new.score = 'dislike')::INTEGER
+		WHERE comment_id = new.comment_id;
+	ELSIF (TG_OP = 'UPDATE') THEN
+		UPDATE comments SET
+		likes = likes + (new.score = 'like')::INTEGER - (old.score = 'like')::INTEGER,
+		dislikes = dislikes + (new.score = 'dislike')::INTEGER - (old.score = 'dislike')::INTEGER
+		WHERE comment_id = new.comment_id;
+	ELSE
+		UPDATE comments SET
+		likes = likes - (old.score = 'like')::INTEGER,
+		dislikes = dislikes - (old.score = 'dislike')::INTEGER
+		WHERE comment_id = old.comment_id;
+	END IF;
+
+	RETURN NULL;
+
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER cmnt_score_cnt AFTER INSERT OR DELETE ON comment_score
+FOR EACH ROW
+EXECUTE PROCEDURE count_comment_score();
+
+CREATE TRIGGER cmnt_score_chg AFTER UPDATE OF score ON comment_score
+FOR EACH ROW
+WHEN (old.score IS DISTINCT FROM new.score)
+EXECUTE PROCEDURE count_comment_score();
+
 /* trigers [end] */
 
+/* recompute like/dislike counters from the score tables. returns the number of fixed rows */
+CREATE OR REPLACE FUNCTION repair_score_counters() RETURNS INTEGER AS
+$$
+DECLARE
+	video_rows INTEGER;
+	comment_rows INTEGER;
+BEGIN
+	UPDATE video SET likes = counted.likes, dislikes = counted.dislikes
+	FROM (SELECT video_id,
+		COUNT(score) FILTER (WHERE score = 'like') AS likes,
+		COUNT(score) FILTER (WHERE score = 'dislike') AS dislikes
+		FROM video LEFT JOIN video_score USING(video_id)
+		GROUP BY video_id) AS counted
+	WHERE video.video_id = counted.video_id
+	AND (video.likes, video.dislikes) <> (counted.likes, counted.dislikes);
+
+	GET DIAGNOSTICS video_rows = ROW_COUNT;
+
+	UPDATE comments SET likes = counted.likes, dislikes = counted.dislikes
+	FROM (SELECT comment_id,
+		COUNT(score) FILTER (WHERE score = 'like') AS likes,
+		COUNT(score) FILTER (WHERE score = 'dislike') AS dislikes
+		FROM comments LEFT JOIN comment_score USING(comment_id)
+		GROUP BY comment_id) AS counted
+	WHERE comments.comment_id = counted.comment_id
+	AND (comments.likes, comments.dislikes) <> (counted.likes, counted.dislikes);
+
+	GET DIAGNOSTICS comment_rows = ROW_COUNT;
+
+	RETURN video_rows + comment_rows;
+
+END;
+$$
+LANGUAGE plpgsql;
+
 COMMIT;
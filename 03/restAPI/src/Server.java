@@ -1,17 +1,20 @@
 import com.sun.net.httpserver.HttpServer;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 import java.io.IOException;
 
 import handler.DBHandler;
 import handler.RequestHandler;
 import cfg.Config;
+import exec.ExecutorFactory;
 
 public class Server {
+	private static final int SHUTDOWN_DELAY = 2; // seconds
 	private int port;
+	private Config config;
 
 	public Server(Config config){
 		port = config.server_port;
+		this.config = config;
 	}
 
 	public boolean startServer(DBHandler dbhandler){
@@ -25,10 +28,21 @@ public class Server {
 			return false;
 		}
 
-		server.createContext("/", new RequestHandler(dbhandler));
-		server.setExecutor(Executors.newCachedThreadPool()); // multi-thread request handling
+		RequestHandler handler = new RequestHandler(dbhandler, config);
+		server.createContext("/", handler);
+
+		// multi-thread request handling
+		server.setExecutor(ExecutorFactory.createWithOverflow(config.execution_mode, config.worker_threads,
+			config.worker_queue, "request-worker"));
 		server.start();
 
+		// finish running requests and flush buffered data on exit
+		final HttpServer running_server = server;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			running_server.stop(SHUTDOWN_DELAY);
+			handler.shutdown();
+		}));
+
 		System.out.printf("server started on port %d\n", port);
 		return true;
 	}
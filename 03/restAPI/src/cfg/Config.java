@@ -1,9 +1,122 @@
 package cfg;
 
+import java.util.ArrayList;
+
 public class Config {
 	public String db_username;
 	public String db_password;
 	public String db_name;
 	public int db_port;
+	public int db_pool_size = 10;
 	public int server_port;
+
+	// request execution
+	public String execution_mode = "virtual"; // virtual, pool or cached
+	public int worker_threads = 200; // pool mode only
+	public int worker_queue = 1000; // pool mode only
+	public int max_inflight_requests = 10000; // 0 = unlimited
+	public int max_body_size = 64 * 1024; // bytes
+
+	// token bucket rate limits per route and client (userid if logged in, otherwise ip)
+	public static class RateLimit {
+		public final String route;
+		public int rate; // requests per minute
+		public int burst; // requests allowed at once
+
+		public RateLimit(String route){
+			this.route = route;
+		}
+	}
+
+	public ArrayList<RateLimit> rate_limits = new ArrayList<RateLimit>();
+	public int rate_limit_clients = 100000; // max clients tracked per route
+
+	// adaptive limit of requests using the database at once, over it requests get 503
+	public int db_limit_max = 0; // 0 = disabled
+	public int db_limit_min = 2;
+	public int db_limit_initial = 10;
+	public int db_limit_latency = 500; // milliseconds of pool wait + sql per request, slower ones shrink the limit
+	public int db_limit_backoff = 90; // percent the limit is multiplied with on a slow request
+	public int db_limit_retry_after = 1; // seconds
+
+	// bulkheads: the routes of a group run on the group's own threads, queue and share of db
+	// connections. a full group replies 503. groups with 0 threads run on the request workers
+	public static class BulkheadGroup {
+		public final String name;
+		public String routes; // comma separated
+		public int threads = 0; // 0 = disabled
+		public int queue = 100; // requests waiting for a thread, more are rejected
+		public int connections = 0; // max db connections of the group, 0 = no quota
+
+		public BulkheadGroup(String name, String routes){
+			this.name = name;
+			this.routes = routes;
+		}
+	}
+
+	public BulkheadGroup[] bulkheads = {
+		new BulkheadGroup("auth", "register,login,logout"),
+		new BulkheadGroup("hot_reads", "getvideo,displayplaylist"),
+		new BulkheadGroup("heavy_reads", "search,displaychannel,displayuserinfo"),
+		new BulkheadGroup("writes", "newvideo,deletevideo,newchannel,deletechannel,channelsubscribe,addcomment,"
+			+ "removecomment,scorevideo,scorecomment,newplaylist,vidplaylist,mngplaylist"),
+	};
+
+	// list results
+	public int page_size = 50; // default number of items per list
+	public int max_page_size = 500;
+
+	// password hashing (PBKDF2) runs on its own bounded thread pool
+	public int password_hash_iterations = 100000;
+	public int password_hash_threads = 4;
+	public int password_hash_queue = 100; // more waiting logins/registrations get 503
+
+	// session tokens: "table" = random tokens stored in userlogin, "signed" = HMAC-signed
+	// tokens checked without the database (see SignedTokens)
+	public String session_tokens = "table";
+	public byte[] session_secret = null; // signing key, required for signed tokens
+
+	// session expiry
+	public int session_ttl = 604800; // seconds without use until a session expires
+	public int session_refresh = 3600; // seconds, sliding expiry granularity, 0 = fixed expiry after login
+	public int session_sweep_interval = 300; // seconds, 0 = expired userlogin rows are never deleted
+	public int session_sweep_batch = 500; // rows per delete
+
+	// authenticated session cache
+	public int session_cache_size = 100000; // 0 = disabled
+	public int session_cache_ttl = 300; // seconds
+
+	// independent queries of one request run concurrently
+	public int fanout_threads = 32; // pool mode only
+	public int fanout_max_per_endpoint = 2; // extra db connections per endpoint, shared by its requests
+	public int fanout_timeout = 10000; // milliseconds
+
+	// requests slower than the threshold are logged with their phase times
+	public int slow_request_threshold = 1000; // milliseconds, 0 = disabled
+	public int slow_log_queue = 1000; // lines waiting to be written, more are dropped
+
+	// metadata of hot videos is kept in memory
+	public int video_cache_size = 10000; // 0 = disabled
+
+	// search results are reused until they expire or searchable data changes
+	public int search_cache_size = 1000; // 0 = disabled
+	public int search_cache_ttl = 30; // seconds
+
+	// like/dislike counters are recomputed from the score tables
+	public int score_repair_interval = 3600; // seconds, 0 = disabled
+
+	// score, comment and subscription writes of many requests are committed together
+	public int write_batch_size = 0; // max writes per transaction, 0 = disabled
+	public int write_batch_linger = 2; // milliseconds to wait for more writes
+	public int write_batch_queue = 10000; // more writes run on their own
+
+	// rapid score changes of a user are coalesced, only the latest one is written
+	public int score_coalesce_window = 0; // milliseconds, 0 = disabled
+
+	// existing video, comment and channel ids are kept in bitmaps, lookups of missing ids skip the database
+	public int id_filter_max_id = 0; // largest id kept (1 bit per id and table), 0 = disabled
+	public int id_filter_rebuild_interval = 600; // seconds, 0 = never
+
+	// video views are buffered and written in batches
+	public int view_flush_interval = 1000; // milliseconds
 }
@@ -2,6 +2,7 @@ package cfg;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.HexFormat;
 
 public class ConfigLoader {
 	private Config config_data;
@@ -78,6 +79,10 @@ public class ConfigLoader {
 			return false;
 		}
 
+		// db connection pool size (optional)
+		if ( (config_data.db_pool_size = getOptionalInt(config, "db_pool_size", config_data.db_pool_size, 1)) < 0 )
+			return false;
+
 		// server port
 		if ( (val = config.get("server_port")) == null ){
 			System.err.printf(error_msg, "server_port");
@@ -91,9 +96,251 @@ public class ConfigLoader {
 			return false;
 		}
 
+		// execution mode (optional)
+		if ( (val = config.get("execution_mode")) != null ){
+			val = val.toLowerCase();
+
+			if (!val.equals("virtual") && !val.equals("pool") && !val.equals("cached")){
+				System.err.printf("execution_mode must be 'virtual', 'pool' or 'cached'. \"%s\" isn't valid\n", val);
+				return false;
+			}
+
+			config_data.execution_mode = val;
+		}
+
+		if ( (config_data.worker_threads = getOptionalInt(config, "worker_threads", config_data.worker_threads, 1)) < 0 )
+			return false;
+
+		if ( (config_data.worker_queue = getOptionalInt(config, "worker_queue", config_data.worker_queue, 0)) < 0 )
+			return false;
+
+		if ( (config_data.max_inflight_requests = getOptionalInt(config, "max_inflight_requests", config_data.max_inflight_requests, 0)) < 0 )
+			return false;
+
+		// rate limits (optional): rate_limit_<route> = requests per minute, rate_limit_<route>_burst
+		if ( (config_data.rate_limit_clients = getOptionalInt(config, "rate_limit_clients", config_data.rate_limit_clients, 1)) < 0 )
+			return false;
+
+		for (String key : config.keySet()){
+			if (!key.startsWith("rate_limit_") || key.endsWith("_burst") || key.equals("rate_limit_clients"))
+				continue;
+
+			Config.RateLimit limit = new Config.RateLimit(key.substring("rate_limit_".length()));
+
+			if ( (limit.rate = getOptionalInt(config, key, 0, 0)) < 0 )
+				return false;
+
+			if ( (limit.burst = getOptionalInt(config, key + "_burst", Math.max(limit.rate, 1), 1)) < 0 )
+				return false;
+
+			if (limit.rate > 0)
+				config_data.rate_limits.add(limit);
+		}
+
+		// adaptive db concurrency limit (optional)
+		if ( (config_data.db_limit_max = getOptionalInt(config, "db_limit_max", config_data.db_limit_max, 0)) < 0 )
+			return false;
+
+		if ( (config_data.db_limit_min = getOptionalInt(config, "db_limit_min", config_data.db_limit_min, 1)) < 0 )
+			return false;
+
+		if ( (config_data.db_limit_initial = getOptionalInt(config, "db_limit_initial", config_data.db_limit_initial, 1)) < 0 )
+			return false;
+
+		if ( (config_data.db_limit_latency = getOptionalInt(config, "db_limit_latency", config_data.db_limit_latency, 1)) < 0 )
+			return false;
+
+		if ( (config_data.db_limit_backoff = getOptionalInt(config, "db_limit_backoff", config_data.db_limit_backoff, 1)) < 0 )
+			return false;
+
+		if (config_data.db_limit_backoff >= 100){
+			System.err.printf("db_limit_backoff must be smaller than 100\n");
+			return false;
+		}
+
+		if ( (config_data.db_limit_retry_after = getOptionalInt(config, "db_limit_retry_after", config_data.db_limit_retry_after, 0)) < 0 )
+			return false;
+
+		if (config_data.db_limit_max > 0 && config_data.db_limit_min > config_data.db_limit_max){
+			System.err.printf("db_limit_min can't be larger than db_limit_max\n");
+			return false;
+		}
+
+		// bulkheads (optional)
+		for (Config.BulkheadGroup group : config_data.bulkheads){
+			String prefix = "bulkhead_" + group.name;
+
+			if ( (val = config.get(prefix + "_routes")) != null )
+				group.routes = val;
+
+			if ( (group.threads = getOptionalInt(config, prefix + "_threads", group.threads, 0)) < 0 )
+				return false;
+
+			if ( (group.queue = getOptionalInt(config, prefix + "_queue", group.queue, 0)) < 0 )
+				return false;
+
+			if ( (group.connections = getOptionalInt(config, prefix + "_connections", group.connections, 0)) < 0 )
+				return false;
+		}
+
+		// max request body size (optional)
+		if ( (config_data.max_body_size = getOptionalInt(config, "max_body_size", config_data.max_body_size, 1)) < 0 )
+			return false;
+
+		// pagination (optional)
+		if ( (config_data.max_page_size = getOptionalInt(config, "max_page_size", config_data.max_page_size, 1)) < 0 )
+			return false;
+
+		if ( (config_data.page_size = getOptionalInt(config, "page_size", config_data.page_size, 1)) < 0 )
+			return false;
+
+		if (config_data.page_size > config_data.max_page_size){
+			System.err.printf("page_size can't be larger than max_page_size\n");
+			return false;
+		}
+
+		// password hashing (optional)
+		if ( (config_data.password_hash_iterations = getOptionalInt(config, "password_hash_iterations", config_data.password_hash_iterations, 1000)) < 0 )
+			return false;
+
+		if ( (config_data.password_hash_threads = getOptionalInt(config, "password_hash_threads", config_data.password_hash_threads, 1)) < 0 )
+			return false;
+
+		if ( (config_data.password_hash_queue = getOptionalInt(config, "password_hash_queue", config_data.password_hash_queue, 0)) < 0 )
+			return false;
+
+		// session tokens (optional)
+		if ( (val = config.get("session_tokens")) != null ){
+			val = val.toLowerCase();
+
+			if (!val.equals("table") && !val.equals("signed")){
+				System.err.printf("session_tokens must be 'table' or 'signed'. \"%s\" isn't valid\n", val);
+				return false;
+			}
+
+			config_data.session_tokens = val;
+		}
+
+		if ( (val = config.get("session_secret")) != null ){
+			try {
+				config_data.session_secret = HexFormat.of().parseHex(val);
+			} catch (IllegalArgumentException e){
+				System.err.printf("session_secret must be a hex string\n");
+				return false;
+			}
+		}
+
+		if (config_data.session_tokens.equals("signed")
+				&& (config_data.session_secret == null || config_data.session_secret.length < 32)){
+			System.err.printf("signed session tokens need a session_secret of at least 32 bytes (64 hex digits)\n");
+			return false;
+		}
+
+		// session expiry (optional)
+		if ( (config_data.session_ttl = getOptionalInt(config, "session_ttl", config_data.session_ttl, 60)) < 0 )
+			return false;
+
+		if ( (config_data.session_refresh = getOptionalInt(config, "session_refresh", config_data.session_refresh, 0)) < 0 )
+			return false;
+
+		if (config_data.session_refresh >= config_data.session_ttl){
+			System.err.printf("session_refresh must be smaller than session_ttl\n");
+			return false;
+		}
+
+		if ( (config_data.session_sweep_interval = getOptionalInt(config, "session_sweep_interval", config_data.session_sweep_interval, 0)) < 0 )
+			return false;
+
+		if ( (config_data.session_sweep_batch = getOptionalInt(config, "session_sweep_batch", config_data.session_sweep_batch, 1)) < 0 )
+			return false;
+
+		// session cache (optional)
+		if ( (config_data.session_cache_size = getOptionalInt(config, "session_cache_size", config_data.session_cache_size, 0)) < 0 )
+			return false;
+
+		if ( (config_data.session_cache_ttl = getOptionalInt(config, "session_cache_ttl", config_data.session_cache_ttl, 1)) < 0 )
+			return false;
+
+		// query fan-out (optional)
+		if ( (config_data.fanout_threads = getOptionalInt(config, "fanout_threads", config_data.fanout_threads, 1)) < 0 )
+			return false;
+
+		if ( (config_data.fanout_max_per_endpoint = getOptionalInt(config, "fanout_max_per_endpoint", config_data.fanout_max_per_endpoint, 0)) < 0 )
+			return false;
+
+		if ( (config_data.fanout_timeout = getOptionalInt(config, "fanout_timeout", config_data.fanout_timeout, 1)) < 0 )
+			return false;
+
+		// slow request log (optional)
+		if ( (config_data.slow_request_threshold = getOptionalInt(config, "slow_request_threshold", config_data.slow_request_threshold, 0)) < 0 )
+			return false;
+
+		if ( (config_data.slow_log_queue = getOptionalInt(config, "slow_log_queue", config_data.slow_log_queue, 1)) < 0 )
+			return false;
+
+		// video metadata cache (optional)
+		if ( (config_data.video_cache_size = getOptionalInt(config, "video_cache_size", config_data.video_cache_size, 0)) < 0 )
+			return false;
+
+		// search result cache (optional)
+		if ( (config_data.search_cache_size = getOptionalInt(config, "search_cache_size", config_data.search_cache_size, 0)) < 0 )
+			return false;
+
+		if ( (config_data.search_cache_ttl = getOptionalInt(config, "search_cache_ttl", config_data.search_cache_ttl, 1)) < 0 )
+			return false;
+
+		// score counter repair interval (optional)
+		if ( (config_data.score_repair_interval = getOptionalInt(config, "score_repair_interval", config_data.score_repair_interval, 0)) < 0 )
+			return false;
+
+		// group commit (optional)
+		if ( (config_data.write_batch_size = getOptionalInt(config, "write_batch_size", config_data.write_batch_size, 0)) < 0 )
+			return false;
+
+		if ( (config_data.write_batch_linger = getOptionalInt(config, "write_batch_linger", config_data.write_batch_linger, 0)) < 0 )
+			return false;
+
+		if ( (config_data.write_batch_queue = getOptionalInt(config, "write_batch_queue", config_data.write_batch_queue, 1)) < 0 )
+			return false;
+
+		// score coalescing window (optional)
+		if ( (config_data.score_coalesce_window = getOptionalInt(config, "score_coalesce_window", config_data.score_coalesce_window, 0)) < 0 )
+			return false;
+
+		// id filter (optional)
+		if ( (config_data.id_filter_max_id = getOptionalInt(config, "id_filter_max_id", config_data.id_filter_max_id, 0)) < 0 )
+			return false;
+
+		if ( (config_data.id_filter_rebuild_interval = getOptionalInt(config, "id_filter_rebuild_interval", config_data.id_filter_rebuild_interval, 0)) < 0 )
+			return false;
+
+		// view counter flush interval (optional)
+		if ( (config_data.view_flush_interval = getOptionalInt(config, "view_flush_interval", config_data.view_flush_interval, 1)) < 0 )
+			return false;
+
 		return true;
 	}
 
+	// returns default_value if key doesn't exist or -1 if value isn't a number >= min_value
+	private int getOptionalInt(HashMap<String, String> config, String key, int default_value, int min_value){
+		String val = config.get(key);
+
+		if (val == null)
+			return default_value;
+
+		try {
+			int number = Integer.parseInt(val);
+
+			if (number >= min_value)
+				return number;
+		} catch (NumberFormatException e){
+			// fall through
+		}
+
+		System.err.printf("%s must be a number >= %d. \"%s\" isn't valid\n", key, min_value, val);
+		return -1;
+	}
+
 	public Config getConfigData(){
 		return config_data;
 	}
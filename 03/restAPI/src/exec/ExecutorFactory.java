@@ -0,0 +1,96 @@
+package exec;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorFactory {
+	private static final int OVERFLOW_THREADS = 2;
+	private static final int OVERFLOW_QUEUE = 1000;
+
+	private static final ThreadLocal<Boolean> overflow = ThreadLocal.withInitial(() -> false);
+
+	// mode: "virtual" (one virtual thread per task), "pool" (bounded platform threads) or "cached"
+	public static ExecutorService create(String mode, int threads, int queue_size, String name){
+		return create(mode, threads, queue_size, name, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	// like create(), but in pool mode tasks that don't fit in the queue aren't rejected: they
+	// run on a small overflow pool and isOverflow() is true for them, so they can be answered
+	// cheaply (e.g. with 503) instead of being dropped
+	public static ExecutorService createWithOverflow(String mode, int threads, int queue_size, String name){
+		ExecutorService overflow_pool = create("pool", OVERFLOW_THREADS, OVERFLOW_QUEUE, name + "-overflow");
+
+		return create(mode, threads, queue_size, name, (Runnable task, ThreadPoolExecutor executor) -> {
+			overflow_pool.execute(() -> {
+				overflow.set(true);
+
+				try {
+					task.run();
+				} finally {
+					overflow.set(false);
+				}
+			});
+		});
+	}
+
+	public static boolean isOverflow(){
+		return overflow.get();
+	}
+
+	private static ExecutorService create(String mode, int threads, int queue_size, String name,
+			RejectedExecutionHandler rejection_handler){
+		if (mode.equals("virtual")){
+			ExecutorService executor = createVirtual();
+
+			if (executor != null)
+				return executor;
+
+			System.err.printf("[%s] virtual threads aren't supported by this JVM, using pool mode\n", name);
+			mode = "pool";
+		}
+
+		if (mode.equals("cached"))
+			return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			(queue_size > 0)? new ArrayBlockingQueue<Runnable>(queue_size) : new SynchronousQueue<Runnable>(),
+			new NamedThreadFactory(name), rejection_handler);
+
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static ExecutorService createVirtual(){
+		// Executors.newVirtualThreadPerTaskExecutor() exists since java 21
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e){
+			return null;
+		}
+	}
+
+	public static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		public NamedThreadFactory(String name){
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable task){
+			Thread thread = new Thread(task, String.format("%s-%d", name, counter.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package handler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// writes log lines to stderr from a background thread. log() never blocks:
+// when the queue is full the line is dropped and counted
+public class AsyncLogger {
+	private final ArrayBlockingQueue<String> queue;
+	private final LongAdder dropped = new LongAdder();
+
+	public AsyncLogger(String name, int queue_size){
+		queue = new ArrayBlockingQueue<String>(queue_size);
+
+		Thread writer = new ExecutorFactory.NamedThreadFactory(name).newThread(this::writeLoop);
+		writer.start();
+	}
+
+	public void log(String line){
+		if (!queue.offer(line))
+			dropped.increment();
+	}
+
+	public void registerMetrics(Metrics metrics, String prefix){
+		metrics.registerCounter(prefix + "_dropped_total", this::getDropped);
+	}
+
+	public long getDropped(){
+		return dropped.sum();
+	}
+
+	private void writeLoop(){
+		try {
+			while (true)
+				System.err.println(queue.take());
+		} catch (InterruptedException e){
+			// exit
+		}
+	}
+}
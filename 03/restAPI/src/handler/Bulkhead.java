@@ -0,0 +1,122 @@
+package handler;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// isolates a group of routes: they run on their own threads, with their own queue
+// limit and their own share of the db connections, so slow requests of one group
+// can't starve the others. requests that don't fit in the queue are rejected
+public class Bulkhead {
+	private static final int CONNECTION_TIMEOUT = 30; // seconds, same as the pool's default
+
+	private final String name;
+	private final ExecutorService executor;
+	private final int capacity; // running + queued requests
+	private final Semaphore admitted;
+	private final Semaphore running; // virtual/cached executors start every task at once
+	private final Semaphore connections; // null = no quota
+	private final int max_connections;
+
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder connection_timeouts = new LongAdder();
+
+	public Bulkhead(String name, String execution_mode, int threads, int queue_size, int max_connections){
+		this.name = name;
+		this.capacity = threads + queue_size;
+		this.admitted = new Semaphore(capacity);
+		this.running = new Semaphore(threads);
+		this.max_connections = max_connections;
+		this.connections = (max_connections > 0)? new Semaphore(max_connections) : null;
+
+		// admitted already limits the tasks, the executor's queue never overflows
+		executor = ExecutorFactory.create(execution_mode, threads, capacity, "bulkhead-" + name);
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	// false if the group is full
+	public boolean execute(Runnable task){
+		if (!admitted.tryAcquire()){
+			rejected.increment();
+			return false;
+		}
+
+		try {
+			executor.execute(() -> {
+				// admitted tasks beyond the thread limit wait here, they are the queue
+				running.acquireUninterruptibly();
+
+				try {
+					task.run();
+				} finally {
+					running.release();
+					admitted.release();
+				}
+			});
+		} catch (RejectedExecutionException e){
+			admitted.release();
+			rejected.increment();
+			return false;
+		}
+
+		return true;
+	}
+
+	// waits for a free slot in the group's connection quota. call releaseConnection() afterwards
+	public void acquireConnection() throws SQLException {
+		if (connections == null)
+			return;
+
+		try {
+			if (connections.tryAcquire(CONNECTION_TIMEOUT, TimeUnit.SECONDS))
+				return;
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		connection_timeouts.increment();
+		throw new SQLException(String.format("connection quota of %s is exhausted", name), SqlErrors.SERVER_BUSY);
+	}
+
+	// false if the quota is used up
+	public boolean tryAcquireConnection(){
+		return connections == null || connections.tryAcquire();
+	}
+
+	public void releaseConnection(){
+		if (connections != null)
+			connections.release();
+	}
+
+	public void registerMetrics(Metrics metrics){
+		String prefix = "bulkhead_" + name;
+		metrics.registerGauge(prefix + "_active", this::getActive);
+		metrics.registerGauge(prefix + "_connections_in_use", this::getConnectionsInUse);
+		metrics.registerCounter(prefix + "_rejected_total", this::getRejected);
+		metrics.registerCounter(prefix + "_connection_timeouts_total", this::getConnectionTimeouts);
+	}
+
+	public int getActive(){
+		return capacity - admitted.availablePermits();
+	}
+
+	public int getConnectionsInUse(){
+		return (connections == null)? 0 : max_connections - connections.availablePermits();
+	}
+
+	public long getRejected(){
+		return rejected.sum();
+	}
+
+	public long getConnectionTimeouts(){
+		return connection_timeouts.sum();
+	}
+}
@@ -0,0 +1,74 @@
+package handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// adaptive limit of requests using the database at once (AIMD). every request that
+// finishes reports how long it waited for a connection plus ran sql. a slow sample
+// or a failed connection shrinks the limit by backoff, a fast one while the limit
+// is in use grows it by one. requests over the limit are rejected right away, so
+// they don't pile up in front of the pool when postgres slows down
+public class ConcurrencyLimiter {
+	private final int min_limit;
+	private final int max_limit;
+	private final long latency_threshold; // nanoseconds
+	private final double backoff;
+
+	// guarded by this
+	private double limit;
+	private int inflight = 0;
+
+	private final LongAdder rejected = new LongAdder();
+
+	public ConcurrencyLimiter(int initial_limit, int min_limit, int max_limit, int latency_threshold, int backoff_percent){
+		this.min_limit = min_limit;
+		this.max_limit = max_limit;
+		this.latency_threshold = TimeUnit.MILLISECONDS.toNanos(latency_threshold);
+		this.backoff = backoff_percent / 100.0;
+		this.limit = Math.max(min_limit, Math.min(initial_limit, max_limit));
+	}
+
+	// false if the limit is reached. call release() after a successful acquire
+	public boolean tryAcquire(){
+		synchronized (this){
+			if (inflight < (int) limit){
+				++inflight;
+				return true;
+			}
+		}
+
+		rejected.increment();
+		return false;
+	}
+
+	// latency: time spent waiting for connections and running sql.
+	// failed: the connection couldn't be acquired (e.g. pool timeout)
+	public synchronized void release(long latency, boolean failed){
+		// only grow while the limit is actually reached, idle periods say nothing about capacity
+		boolean limit_used = (inflight * 2 >= (int) limit);
+		--inflight;
+
+		if (failed || latency > latency_threshold)
+			limit = Math.max(min_limit, limit * backoff);
+		else if (limit_used)
+			limit = Math.min(max_limit, limit + 1);
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("db_concurrency_limit", this::getLimit);
+		metrics.registerGauge("db_concurrency_inflight", this::getInflight);
+		metrics.registerCounter("db_concurrency_rejected_total", this::getRejected);
+	}
+
+	public synchronized int getLimit(){
+		return (int) limit;
+	}
+
+	public synchronized int getInflight(){
+		return inflight;
+	}
+
+	public long getRejected(){
+		return rejected.sum();
+	}
+}
@@ -2,6 +2,7 @@ package handler;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import com.zaxxer.hikari.pool.HikariPool.PoolInitializationException;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -18,6 +19,7 @@ public class DBHandler {
 		hconfig.setJdbcUrl(db_url);
 		hconfig.setUsername(config.db_username);
 		hconfig.setPassword(config.db_password);
+		hconfig.setMaximumPoolSize(config.db_pool_size);
 
 		try {
 			ds = new HikariDataSource(hconfig);
@@ -37,4 +39,17 @@ public class DBHandler {
 	public Connection getConnection() throws SQLException {
 		return ds.getConnection();
 	}
+
+	// the pool gauges are 0 until the pool has started
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("db_pool_connections_active", () -> (getPoolStats() == null)? 0 : getPoolStats().getActiveConnections());
+		metrics.registerGauge("db_pool_connections_idle", () -> (getPoolStats() == null)? 0 : getPoolStats().getIdleConnections());
+		metrics.registerGauge("db_pool_connections_total", () -> (getPoolStats() == null)? 0 : getPoolStats().getTotalConnections());
+		metrics.registerGauge("db_pool_threads_waiting", () -> (getPoolStats() == null)? 0 : getPoolStats().getThreadsAwaitingConnection());
+	}
+
+	// null until the pool has started
+	public HikariPoolMXBean getPoolStats(){
+		return ds.getHikariPoolMXBean();
+	}
 }
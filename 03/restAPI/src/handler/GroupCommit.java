@@ -0,0 +1,269 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// group commit for small writes. writes of many requests are collected for up to
+// max_linger milliseconds and committed in one transaction, so they share one fsync.
+// if any write of a batch fails, the batch is rolled back and its writes are run
+// again one by one, each in its own transaction, so every caller gets its own result.
+// a batch runs on the connection of one of its callers (they are all waiting), so the
+// flusher never needs a pool connection of its own while requests hold the others
+public class GroupCommit {
+	private static final int WAIT_TIMEOUT = 5000; // milliseconds until a caller runs its write itself
+
+	private static final int QUEUED = 0;
+	private static final int CLAIMED = 1; // taken by the flusher, the caller has to wait
+	private static final int CANCELLED = 2; // the caller runs it itself
+
+	public interface Write<T> {
+		T run(Connection conn) throws SQLException;
+	}
+
+	private static class Pending<T> {
+		final Write<T> write;
+		final Connection conn; // caller's connection, idle while it waits
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		T value;
+		Exception error; // of the last run, set instead of value
+
+		Pending(Write<T> write, Connection conn){
+			this.write = write;
+			this.conn = conn;
+		}
+
+		boolean claim(){
+			return state.compareAndSet(QUEUED, CLAIMED);
+		}
+
+		boolean cancel(){
+			return state.compareAndSet(QUEUED, CANCELLED);
+		}
+
+		void run(Connection conn) throws SQLException {
+			value = write.run(conn);
+		}
+
+		void complete(){
+			if (error != null)
+				result.completeExceptionally(error);
+			else
+				result.complete(value);
+		}
+	}
+
+	private final int batch_size; // 0 = disabled
+	private final long max_linger; // nanoseconds
+	private final ArrayBlockingQueue<Pending<?>> queue;
+	private Thread flusher;
+	private volatile boolean running = false;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder retried_batches = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	public GroupCommit(int batch_size, int max_linger, int queue_size){
+		this.batch_size = batch_size;
+		this.max_linger = TimeUnit.MILLISECONDS.toNanos(max_linger);
+		this.queue = new ArrayBlockingQueue<Pending<?>>(Math.max(queue_size, 1));
+	}
+
+	public void start(){
+		if (batch_size <= 0)
+			return;
+
+		running = true;
+		flusher = new ExecutorFactory.NamedThreadFactory("group-commit").newThread(this::flushLoop);
+		flusher.start();
+	}
+
+	// stops taking new writes and commits the queued ones
+	public void shutdown(){
+		if (flusher == null)
+			return;
+
+		running = false;
+		flusher.interrupt();
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		// writes queued while the flusher was exiting
+		Pending<?> pending;
+		while ((pending = queue.poll()) != null){
+			if (pending.claim())
+				pending.result.completeExceptionally(new SQLException("server is shutting down"));
+		}
+	}
+
+	// runs write in the next batch and waits for its commit. when batching is
+	// disabled, the queue is full or the batch doesn't start within WAIT_TIMEOUT,
+	// it runs on conn (autocommit) instead
+	public <T> T run(Connection conn, Write<T> write) throws SQLException {
+		Pending<T> pending = new Pending<T>(write, conn);
+
+		if (!running || !queue.offer(pending))
+			return write.run(conn);
+
+		try {
+			try {
+				return pending.result.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e){
+				if (pending.cancel()){
+					timeouts.increment();
+					return write.run(conn);
+				}
+
+				// the batch is running on some waiter's connection, it will finish
+				return pending.result.get();
+			}
+		} catch (ExecutionException e){
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+
+			throw new SQLException(e.getCause());
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+
+			// the batch may still use conn, the caller closes it only when the batch is done
+			if (!pending.cancel())
+				pending.result.join();
+
+			throw new SQLException("interrupted");
+		}
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("group_commit_queued", this::getQueued);
+		metrics.registerCounter("group_commit_batches_total", this::getBatches);
+		metrics.registerCounter("group_commit_writes_total", this::getWrites);
+		metrics.registerCounter("group_commit_retried_batches_total", this::getRetriedBatches);
+		metrics.registerCounter("group_commit_timeouts_total", this::getTimeouts);
+	}
+
+	public long getBatches(){
+		return batches.sum();
+	}
+
+	public long getWrites(){
+		return writes.sum();
+	}
+
+	public long getRetriedBatches(){
+		return retried_batches.sum();
+	}
+
+	public long getTimeouts(){
+		return timeouts.sum();
+	}
+
+	public int getQueued(){
+		return queue.size();
+	}
+
+	private void flushLoop(){
+		ArrayList<Pending<?>> batch = new ArrayList<Pending<?>>(batch_size);
+
+		while (running || !queue.isEmpty()){
+			try {
+				collect(batch);
+			} catch (InterruptedException e){
+				// shutting down: commit what we have and drain the queue
+				queue.drainTo(batch);
+			}
+
+			if (!batch.isEmpty()){
+				flush(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	// waits for the first write, then for more until the batch is full or max_linger has passed
+	private void collect(ArrayList<Pending<?>> batch) throws InterruptedException {
+		batch.add(queue.take());
+		long deadline = System.nanoTime() + max_linger;
+
+		while (batch.size() < batch_size){
+			Pending<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+			if (next == null)
+				break;
+
+			batch.add(next);
+		}
+	}
+
+	private void flush(ArrayList<Pending<?>> queued){
+		// callers that gave up waiting have run their writes themselves
+		ArrayList<Pending<?>> batch = new ArrayList<Pending<?>>(queued.size());
+
+		for (Pending<?> pending : queued){
+			if (pending.claim())
+				batch.add(pending);
+		}
+
+		if (batch.isEmpty())
+			return;
+
+		batches.increment();
+		writes.add(batch.size());
+
+		Connection conn = batch.get(0).conn;
+
+		try {
+			conn.setAutoCommit(false);
+
+			for (Pending<?> pending : batch)
+				pending.run(conn);
+
+			conn.commit();
+		} catch (SQLException | RuntimeException e){
+			retried_batches.increment();
+
+			try {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			} catch (SQLException e2){
+				// do nothing
+			}
+
+			runEach(conn, batch);
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException e){
+				// do nothing
+			}
+		}
+
+		// the connection is back as its request left it, only now may its owner close it
+		for (Pending<?> pending : batch)
+			pending.complete();
+	}
+
+	private void runEach(Connection conn, ArrayList<Pending<?>> batch){
+		for (Pending<?> pending : batch){
+			try {
+				pending.run(conn);
+			} catch (SQLException | RuntimeException e){
+				pending.error = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// bitmap of the ids that exist in a table (one bit per id, serial ids are dense).
+// a clear bit below the largest known id means the row doesn't exist, so requests for
+// random or deleted ids are answered without the database. ids above it are "maybe",
+// as are set bits: rows deleted by cascades are still marked. create/delete endpoints
+// keep it current, a periodic rebuild catches changes made outside of this server.
+// rows another writer inserts below the largest known id look missing until then,
+// so only enable it if this server is the only one writing these tables.
+// lookups read the current snapshot without locking, changes are made under this
+public class IdFilter {
+	private static class Snapshot {
+		final AtomicLongArray words;
+		volatile int last_id; // raised after the bit is set
+
+		Snapshot(AtomicLongArray words, int last_id){
+			this.words = words;
+			this.last_id = last_id;
+		}
+
+		boolean get(int id){
+			int index = id >>> 6;
+			return index < words.length() && (words.get(index) & (1L << id)) != 0;
+		}
+
+		void set(int id){
+			words.getAndAccumulate(id >>> 6, 1L << id, (long word, long bit) -> word | bit);
+		}
+
+		void clear(int id){
+			int index = id >>> 6;
+
+			if (index < words.length())
+				words.getAndAccumulate(index, 1L << id, (long word, long bit) -> word & ~bit);
+		}
+	}
+
+	private final DBHandler dbhandler;
+	private final String table;
+	private final String column;
+	private final int max_id; // 0 = disabled
+	private final int rebuild_interval; // seconds, 0 = never
+
+	private volatile Snapshot ids = null; // null until loaded or if the table outgrew max_id
+	private ArrayList<Integer> added_while_loading = null; // guarded by this
+
+	private final LongAdder rejected = new LongAdder();
+	private ScheduledExecutorService scheduler;
+
+	public IdFilter(DBHandler dbhandler, String table, String column, int max_id, int rebuild_interval){
+		this.dbhandler = dbhandler;
+		this.table = table;
+		this.column = column;
+		this.max_id = max_id;
+		this.rebuild_interval = rebuild_interval;
+	}
+
+	public void start(){
+		if (max_id <= 0)
+			return;
+
+		load();
+
+		if (rebuild_interval <= 0)
+			return;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory(table + "-id-filter"));
+		scheduler.scheduleWithFixedDelay(this::load, rebuild_interval, rebuild_interval, TimeUnit.SECONDS);
+	}
+
+	public void shutdown(){
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	// false if id surely doesn't exist
+	public boolean mightExist(int id){
+		Snapshot snapshot = ids;
+
+		if (snapshot == null || id > snapshot.last_id || snapshot.get(id))
+			return true;
+
+		rejected.increment();
+		return false;
+	}
+
+	// call after the insert has been committed
+	public synchronized void add(int id){
+		if (added_while_loading != null)
+			added_while_loading.add(id);
+
+		if (ids == null)
+			return;
+
+		if (id > max_id){
+			// too large to keep, fall back to the database
+			System.err.printf("%s ids are larger than %d, id filter disabled\n", table, max_id);
+			ids = null;
+			return;
+		}
+
+		Snapshot snapshot = ids;
+
+		// readers of the old snapshot see id above its last_id, so they say "maybe"
+		if ((id >>> 6) >= snapshot.words.length()){
+			snapshot = copy(snapshot, id);
+			ids = snapshot;
+		}
+
+		snapshot.set(id);
+		snapshot.last_id = Math.max(snapshot.last_id, id);
+	}
+
+	public synchronized void remove(int id){
+		Snapshot snapshot = ids;
+
+		if (snapshot != null)
+			snapshot.clear(id);
+	}
+
+	// rejected: lookups answered "doesn't exist" without the database
+	public void registerMetrics(Metrics metrics, String prefix){
+		metrics.registerGauge(prefix + "_active", () -> isActive()? 1 : 0);
+		metrics.registerCounter(prefix + "_rejected_total", this::getRejected);
+	}
+
+	public long getRejected(){
+		return rejected.sum();
+	}
+
+	public boolean isActive(){
+		return ids != null;
+	}
+
+	private void load(){
+		synchronized (this){
+			added_while_loading = new ArrayList<Integer>();
+		}
+
+		BitSet loaded = new BitSet();
+		int loaded_last = 0;
+		Connection conn = null;
+
+		try {
+			conn = dbhandler.getConnection();
+			ResultSet sql_result = conn.createStatement().executeQuery(String.format("SELECT %s FROM %s", column, table));
+
+			while (sql_result.next()){
+				int id = sql_result.getInt(1);
+
+				if (id > max_id){
+					System.err.printf("%s ids are larger than %d, id filter disabled\n", table, max_id);
+					loaded = null;
+					break;
+				}
+
+				loaded.set(id);
+				loaded_last = Math.max(loaded_last, id);
+			}
+
+			conn.close();
+		} catch (SQLException e){
+			System.err.printf("loading %s ids failed [%s]\n", table, e.getMessage());
+			loaded = null;
+
+			if (conn != null){
+				try {
+					conn.close();
+				} catch (SQLException e2){
+					// do nothing
+				}
+			}
+		}
+
+		synchronized (this){
+			// ids created after our snapshot started. deletes can be missed, that's harmless
+			if (loaded != null){
+				for (int id : added_while_loading){
+					if (id > max_id){
+						loaded = null;
+						break;
+					}
+
+					loaded.set(id);
+					loaded_last = Math.max(loaded_last, id);
+				}
+			}
+
+			added_while_loading = null;
+			ids = (loaded == null)? null : new Snapshot(toWords(loaded, loaded_last), loaded_last);
+		}
+	}
+
+	private AtomicLongArray toWords(BitSet loaded, int loaded_last){
+		long[] words = loaded.toLongArray();
+		return new AtomicLongArray(Arrays.copyOf(words, Math.max(words.length, getCapacity(loaded_last))));
+	}
+
+	private Snapshot copy(Snapshot snapshot, int id){
+		AtomicLongArray words = new AtomicLongArray(getCapacity(id));
+
+		for (int i = 0; i < snapshot.words.length(); ++i)
+			words.set(i, snapshot.words.get(i));
+
+		return new Snapshot(words, snapshot.last_id);
+	}
+
+	// words for ids up to id plus room for the ones created until the next rebuild
+	private int getCapacity(int id){
+		long headroom = Math.min((long) id + id / 4 + 4096, max_id);
+		return (int) (Math.max(headroom, id) >>> 6) + 1;
+	}
+}
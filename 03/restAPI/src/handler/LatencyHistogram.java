@@ -0,0 +1,100 @@
+package handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// fixed-size log-linear histogram of durations in nanoseconds.
+// every power of two is split into 16 buckets, so a percentile is off by at most ~6%.
+// record() only increments counters and never allocates
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder sum = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	public void record(long nanos, boolean is_failed){
+		if (nanos < 0)
+			nanos = 0;
+
+		buckets.incrementAndGet(bucketIndex(nanos));
+		sum.add(nanos);
+
+		if (is_failed)
+			failed.increment();
+	}
+
+	public long getSum(){
+		return sum.sum();
+	}
+
+	public long getFailed(){
+		return failed.sum();
+	}
+
+	// counters are read one by one, so a snapshot taken under load is only approximately consistent
+	public long[] snapshot(){
+		long[] counts = new long[BUCKET_COUNT];
+
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+			counts[i] = buckets.get(i);
+
+		return counts;
+	}
+
+	public static long getCount(long[] counts){
+		long count = 0;
+
+		for (long c : counts)
+			count += c;
+
+		return count;
+	}
+
+	// returns the value below which the given fraction of samples fall (middle of the bucket)
+	public static long getPercentile(long[] counts, double fraction){
+		long count = getCount(counts);
+
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; ++i){
+			seen += counts[i];
+
+			if (seen >= rank && counts[i] > 0)
+				return bucketLow(i) + bucketWidth(i) / 2;
+		}
+
+		return bucketLow(counts.length - 1);
+	}
+
+	private static int bucketIndex(long value){
+		if (value < SUB_COUNT)
+			return (int) value;
+
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+
+		return (msb - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long bucketLow(int index){
+		if (index < SUB_COUNT)
+			return index;
+
+		int msb = index / SUB_COUNT + SUB_BITS - 1;
+		return (long) (SUB_COUNT + index % SUB_COUNT) << (msb - SUB_BITS);
+	}
+
+	private static long bucketWidth(int index){
+		if (index < SUB_COUNT)
+			return 1;
+
+		return 1L << (index / SUB_COUNT - 1);
+	}
+}
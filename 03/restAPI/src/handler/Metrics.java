@@ -0,0 +1,82 @@
+package handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+// request latency per method and server counters, exported in prometheus text format.
+// components register their own gauges and counters (see registerMetrics() of each)
+public class Metrics {
+	private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+	private static class Source {
+		final String name;
+		final String type;
+		final LongSupplier value;
+
+		Source(String name, String type, LongSupplier value){
+			this.name = name;
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	// filled once at startup, read-only afterwards
+	private final HashMap<String, LatencyHistogram> latencies = new HashMap<String, LatencyHistogram>();
+	private final TreeSet<String> methods;
+	private final ArrayList<Source> sources = new ArrayList<Source>();
+
+	public Metrics(Collection<String> methods){
+		this.methods = new TreeSet<String>(methods);
+
+		for (String method : methods)
+			latencies.put(method, new LatencyHistogram());
+	}
+
+	public void record(String method, long nanos, boolean failed){
+		LatencyHistogram histogram = latencies.get(method);
+
+		if (histogram != null)
+			histogram.record(nanos, failed);
+	}
+
+	// call at startup, before the server takes requests
+	public void registerGauge(String name, LongSupplier value){
+		sources.add(new Source(name, "gauge", value));
+	}
+
+	public void registerCounter(String name, LongSupplier value){
+		sources.add(new Source(name, "counter", value));
+	}
+
+	public String format(){
+		StringBuilder out = new StringBuilder(8 * 1024);
+
+		out.append("# TYPE request_duration_seconds summary\n");
+		for (String method : methods){
+			LatencyHistogram histogram = latencies.get(method);
+			long[] counts = histogram.snapshot();
+
+			for (double quantile : QUANTILES){
+				out.append(String.format(Locale.ROOT, "request_duration_seconds{method=\"%s\",quantile=\"%s\"} %.6f\n",
+					method, quantile, LatencyHistogram.getPercentile(counts, quantile) / 1e9));
+			}
+
+			out.append(String.format(Locale.ROOT, "request_duration_seconds_sum{method=\"%s\"} %.6f\n", method, histogram.getSum() / 1e9));
+			out.append(String.format("request_duration_seconds_count{method=\"%s\"} %d\n", method, LatencyHistogram.getCount(counts)));
+		}
+
+		// requests answered with "result":false
+		out.append("# TYPE request_failed_total counter\n");
+		for (String method : methods)
+			out.append(String.format("request_failed_total{method=\"%s\"} %d\n", method, latencies.get(method).getFailed()));
+
+		for (Source source : sources)
+			out.append(String.format("# TYPE %s %s\n%s %d\n", source.name, source.type, source.name, source.value.getAsLong()));
+
+		return out.toString();
+	}
+}
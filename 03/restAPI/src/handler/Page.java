@@ -0,0 +1,110 @@
+package handler;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// keyset pagination for list results.
+// request: "limit":<n>, "after":{"<list>":"<cursor>", ...}
+// response: "next":{"<list>":"<cursor>" or null, ...}
+public class Page {
+	public final int limit;
+	private final JSONObject after;
+	private final JSONObject next = new JSONObject();
+
+	// a cursor that wasn't made by setNext() for this list
+	public static class InvalidCursorException extends JSONException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidCursorException(String list){
+			super(String.format("invalid cursor for %s", list));
+		}
+	}
+
+	// position of the last returned row. time is null for lists that are sorted by id only
+	public static class Cursor {
+		public final Timestamp time;
+		public final int id;
+
+		private Cursor(Timestamp time, int id){
+			this.time = time;
+			this.id = id;
+		}
+	}
+
+	private Page(int limit, JSONObject after){
+		this.limit = limit;
+		this.after = after;
+	}
+
+	public static Page fromRequest(JSONObject data, int default_limit, int max_limit) throws JSONException {
+		int limit = default_limit;
+		JSONObject after = null;
+
+		if (data.has("limit")){
+			limit = data.getInt("limit");
+
+			if (limit < 1 || limit > max_limit)
+				throw new JSONException(String.format("limit must be between 1 and %d", max_limit));
+		}
+
+		if (data.has("after"))
+			after = data.getJSONObject("after");
+
+		return new Page(limit, after);
+	}
+
+	// cursor of a list sorted by id. returns null if the first page of list is requested
+	public Cursor getCursor(String list) throws JSONException {
+		return getCursor(list, false);
+	}
+
+	// cursor of a list sorted by (time, id)
+	public Cursor getTimeCursor(String list) throws JSONException {
+		return getCursor(list, true);
+	}
+
+	private Cursor getCursor(String list, boolean timed) throws JSONException {
+		if (after == null || !after.has(list) || after.isNull(list))
+			return null;
+
+		try {
+			String value = new String(Base64.getUrlDecoder().decode(after.getString(list)), StandardCharsets.UTF_8);
+			int separator = value.lastIndexOf('|');
+
+			if ((separator != -1) != timed)
+				throw new InvalidCursorException(list);
+
+			if (!timed)
+				return new Cursor(null, Integer.parseInt(value));
+
+			return new Cursor(Timestamp.valueOf(value.substring(0, separator)),
+				Integer.parseInt(value.substring(separator + 1)));
+		} catch (IllegalArgumentException e){
+			throw new InvalidCursorException(list);
+		} catch (JSONException e){
+			// not a string
+			throw new InvalidCursorException(list);
+		}
+	}
+
+	// has_more: a row beyond the limit was found, so there is a next page after last_id.
+	// lists of one page may be loaded concurrently
+	public synchronized void setNext(String list, boolean has_more, int last_id){
+		next.put(list, has_more? encode(String.valueOf(last_id)) : JSONObject.NULL);
+	}
+
+	public synchronized void setNext(String list, boolean has_more, Timestamp last_time, int last_id){
+		next.put(list, has_more? encode(String.format("%s|%d", last_time, last_id)) : JSONObject.NULL);
+	}
+
+	public synchronized JSONObject getNext(){
+		return next;
+	}
+
+	private static String encode(String value){
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,143 @@
+package handler;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import exec.ExecutorFactory;
+
+// PBKDF2-HMAC-SHA256 password hashes, stored as pbkdf2_sha256$<iterations>$<salt>$<hash>.
+// hashing runs on a small bounded pool, so a login storm uses at most its threads
+// instead of every request thread. when the pool and its queue are full, callers
+// get BusyException right away. older rows hold MD5-based crypt() hashes made by
+// the database, see isLegacy()
+public class PasswordHasher {
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final String PREFIX = "pbkdf2_sha256";
+	private static final int SALT_SIZE = 16; // bytes
+	private static final int HASH_SIZE = 32; // bytes
+
+	public static class BusyException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public BusyException(){
+			super("password hasher is busy");
+		}
+	}
+
+	private final int iterations;
+	private final ExecutorService executor;
+	private final SecureRandom random = new SecureRandom();
+
+	private final LongAdder rejected = new LongAdder();
+
+	public PasswordHasher(int iterations, int threads, int queue_size){
+		this.iterations = iterations;
+		executor = ExecutorFactory.create("pool", threads, queue_size, "password-hasher");
+	}
+
+	// md5-crypt hash made by the database before hashing moved here
+	public static boolean isLegacy(String stored){
+		return stored.startsWith("$1$");
+	}
+
+	public String hash(String password) throws BusyException {
+		byte[] salt = new byte[SALT_SIZE];
+		random.nextBytes(salt);
+
+		byte[] hash = run(() -> derive(password, salt, iterations));
+
+		return String.format("%s$%d$%s$%s", PREFIX, iterations, Base64.getEncoder().encodeToString(salt),
+			Base64.getEncoder().encodeToString(hash));
+	}
+
+	// false for a wrong password or a malformed hash
+	public boolean verify(String password, String stored) throws BusyException {
+		String[] parts = stored.split("\\$");
+
+		if (parts.length != 4 || !parts[0].equals(PREFIX))
+			return false;
+
+		int stored_iterations;
+		byte[] salt;
+		byte[] expected;
+
+		try {
+			stored_iterations = Integer.parseInt(parts[1]);
+			salt = Base64.getDecoder().decode(parts[2]);
+			expected = Base64.getDecoder().decode(parts[3]);
+		} catch (IllegalArgumentException e){
+			return false;
+		}
+
+		byte[] hash = run(() -> derive(password, salt, stored_iterations));
+		return MessageDigest.isEqual(hash, expected);
+	}
+
+	// legacy hashes and hashes with fewer iterations than configured are replaced on login
+	public boolean needsRehash(String stored){
+		if (isLegacy(stored))
+			return true;
+
+		String[] parts = stored.split("\\$");
+
+		try {
+			return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+		} catch (NumberFormatException e){
+			return true;
+		}
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerCounter("password_hash_rejected_total", this::getRejected);
+	}
+
+	public long getRejected(){
+		return rejected.sum();
+	}
+
+	private interface Task {
+		byte[] run() throws Exception;
+	}
+
+	private byte[] run(Task task) throws BusyException {
+		Future<byte[]> result;
+
+		try {
+			result = executor.submit(task::run);
+		} catch (RejectedExecutionException e){
+			rejected.increment();
+			throw new BusyException();
+		}
+
+		try {
+			return result.get();
+		} catch (ExecutionException e){
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			result.cancel(true);
+			throw new BusyException();
+		}
+	}
+
+	private static byte[] derive(String password, byte[] salt, int iterations)
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_SIZE * 8);
+
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.postgresql.core.BaseConnection;
+
+// runs independent queries of one request concurrently, each on its own pooled connection.
+// max_per_endpoint limits the extra connections of all requests of an endpoint together,
+// not per request: under load most requests of a hot endpoint find no permit and run
+// sequentially, so fan-out can't take more than max_per_endpoint connections per endpoint
+// from the pool. queries over that limit, or over the connection quota of the request's
+// bulkhead, run on the request's own connection instead
+public class QueryFanout {
+	public interface Query<T> {
+		T run(Connection conn) throws SQLException;
+	}
+
+	private final ExecutorService executor;
+	private final int max_per_endpoint;
+	private final int timeout; // milliseconds
+	private final ConcurrentHashMap<String, Semaphore> endpoint_permits = new ConcurrentHashMap<String, Semaphore>();
+
+	public QueryFanout(ExecutorService executor, int max_per_endpoint, int timeout){
+		this.executor = executor;
+		this.max_per_endpoint = max_per_endpoint;
+		this.timeout = timeout;
+	}
+
+	public Batch begin(String endpoint, RequestContext context){
+		Semaphore permits = endpoint_permits.computeIfAbsent(endpoint, (String name) -> new Semaphore(max_per_endpoint));
+		return new Batch(context, permits, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+	}
+
+	public class Batch {
+		private final RequestContext context;
+		private final Semaphore permits;
+		private final long deadline;
+		private final ArrayList<Task<?>> tasks = new ArrayList<Task<?>>();
+
+		private Batch(RequestContext context, Semaphore permits, long deadline){
+			this.context = context;
+			this.permits = permits;
+			this.deadline = deadline;
+		}
+
+		public <T> Task<T> submit(Query<T> query){
+			Task<T> task = new Task<T>();
+			tasks.add(task);
+
+			if (permits.tryAcquire()){
+				if (context.reserveConnection()){
+					try {
+						executor.execute(() -> runOnOwnConnection(task, query));
+						return task;
+					} catch (RejectedExecutionException e){
+						context.cancelReservation();
+					}
+				}
+
+				permits.release();
+			}
+
+			// no spare connection for this endpoint: run it now on the request connection,
+			// with the batch's deadline as query timeout since await() can't cancel it
+			context.setQueryDeadline(deadline);
+
+			try {
+				task.future.complete(query.run(context.getConnection()));
+			} catch (Throwable e){
+				task.future.completeExceptionally(e);
+			} finally {
+				context.clearQueryDeadline();
+			}
+
+			return task;
+		}
+
+		// waits for all queries. on the first failure or when the deadline passes,
+		// the remaining queries are cancelled
+		public void await() throws SQLException {
+			try {
+				for (Task<?> task : tasks){
+					long remaining = deadline - System.nanoTime();
+					task.future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+				}
+			} catch (TimeoutException e){
+				cancelAll();
+				throw new SQLTimeoutException("query fan-out deadline exceeded");
+			} catch (ExecutionException e){
+				cancelAll();
+
+				if (e.getCause() instanceof SQLException)
+					throw (SQLException) e.getCause();
+
+				throw new SQLException(e.getCause());
+			} catch (InterruptedException e){
+				cancelAll();
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted");
+			}
+		}
+
+		private void cancelAll(){
+			for (Task<?> task : tasks)
+				task.cancel();
+		}
+
+		private <T> void runOnOwnConnection(Task<T> task, Query<T> query){
+			Connection conn = null;
+
+			try {
+				if (task.future.isDone()) // cancelled before it started
+					return;
+
+				conn = context.openConnection();
+
+				if (!task.setConnection(conn)) // cancelled while waiting for the connection
+					return;
+
+				task.future.complete(query.run(conn));
+			} catch (Throwable e){
+				task.future.completeExceptionally(e);
+			} finally {
+				task.setConnection(null);
+
+				if (conn != null){
+					try {
+						conn.close(); // frees the reserved slot too
+					} catch (SQLException e){
+						// do nothing
+					}
+				} else {
+					context.cancelReservation();
+				}
+
+				permits.release();
+			}
+		}
+	}
+
+	public static class Task<T> {
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		private Connection conn; // set while the query runs on its own connection
+
+		// only valid after Batch.await() returned
+		public T get(){
+			return future.getNow(null);
+		}
+
+		// false if the task is already done, then cancel() won't see conn
+		private synchronized boolean setConnection(Connection conn){
+			if (conn != null && future.isDone())
+				return false;
+
+			this.conn = conn;
+			return true;
+		}
+
+		private synchronized void cancel(){
+			if (!future.completeExceptionally(new CancellationException()) || conn == null)
+				return;
+
+			// the connection can't go back to the pool while we hold the lock
+			try {
+				conn.unwrap(BaseConnection.class).cancelQuery();
+			} catch (SQLException e){
+				// do nothing
+			}
+		}
+	}
+}
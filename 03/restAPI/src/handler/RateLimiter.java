@@ -0,0 +1,169 @@
+package handler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// token buckets per route and client (ip or userid). a bucket is one AtomicLong:
+// the upper 40 bits are the last refill time in milliseconds since start, the lower
+// 24 bits the tokens in thousandths, so taking a token is a single compare-and-set.
+// full buckets hold no information and are dropped by a periodic sweep. when a route
+// has max_clients buckets, new clients share one overflow bucket
+public class RateLimiter {
+	private static final int TOKEN_BITS = 24;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	private static final long ONE_TOKEN = 1000;
+	public static final int MAX_BURST = (int) (TOKEN_MASK / ONE_TOKEN);
+	private static final int SWEEP_INTERVAL = 10; // seconds
+
+	private static class Rule {
+		final int rate; // tokens per minute
+		final long capacity; // thousandths
+		final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+		final AtomicLong overflow;
+
+		Rule(int rate, int burst, long now){
+			this.rate = rate;
+			this.capacity = burst * ONE_TOKEN;
+			this.overflow = new AtomicLong(pack(now, capacity));
+		}
+	}
+
+	private final HashMap<String, Rule> rules = new HashMap<String, Rule>(); // read-only after setup
+	private final int max_clients;
+	private final long start_time = System.nanoTime();
+	private ScheduledExecutorService sweeper;
+
+	private final LongAdder throttled = new LongAdder();
+
+	public RateLimiter(int max_clients){
+		this.max_clients = max_clients;
+	}
+
+	// rate: requests per minute, burst: requests allowed at once. call before start()
+	public void addRule(String route, int rate, int burst){
+		rules.put(route, new Rule(rate, Math.min(burst, MAX_BURST), now()));
+	}
+
+	public boolean isEnabled(){
+		return !rules.isEmpty();
+	}
+
+	public void start(){
+		if (!isEnabled())
+			return;
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory("rate-limit-sweeper"));
+		sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	public void shutdown(){
+		if (sweeper != null)
+			sweeper.shutdownNow();
+	}
+
+	// takes a token of client's bucket for route. returns 0 if the request may run,
+	// otherwise the milliseconds until the next token
+	public long tryAcquire(String route, String client){
+		Rule rule = rules.get(route);
+
+		if (rule == null)
+			return 0;
+
+		AtomicLong bucket = rule.buckets.get(client);
+
+		if (bucket == null){
+			if (rule.buckets.size() < max_clients)
+				bucket = rule.buckets.computeIfAbsent(client, (String c) -> new AtomicLong(pack(now(), rule.capacity)));
+			else
+				bucket = rule.overflow;
+		}
+
+		long wait = take(rule, bucket);
+
+		if (wait > 0)
+			throttled.increment();
+
+		return wait;
+	}
+
+	public void registerMetrics(Metrics metrics){
+		if (!isEnabled())
+			return;
+
+		metrics.registerGauge("rate_limit_clients", this::getClients);
+		metrics.registerCounter("rate_limit_throttled_total", this::getThrottled);
+	}
+
+	public long getThrottled(){
+		return throttled.sum();
+	}
+
+	public int getClients(){
+		int clients = 0;
+
+		for (Rule rule : rules.values())
+			clients += rule.buckets.size();
+
+		return clients;
+	}
+
+	private long take(Rule rule, AtomicLong bucket){
+		while (true){
+			long now = now();
+			long state = bucket.get();
+			long last = state >>> TOKEN_BITS;
+			long tokens = refill(rule, state, now);
+
+			// time only moves on if it added something, so slow rates still refill
+			if (tokens != (state & TOKEN_MASK) || tokens == rule.capacity)
+				last = now;
+
+			if (tokens < ONE_TOKEN)
+				return Math.max(1, (ONE_TOKEN - tokens) * 60 / rule.rate);
+
+			if (bucket.compareAndSet(state, pack(last, tokens - ONE_TOKEN)))
+				return 0;
+		}
+	}
+
+	private static long refill(Rule rule, long state, long now){
+		long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+		long tokens = state & TOKEN_MASK;
+
+		// elapsed * rate / 60000 tokens, in thousandths
+		return Math.min(rule.capacity, tokens + elapsed * rule.rate / 60);
+	}
+
+	// full buckets are the same as new ones
+	private void sweep(){
+		long now = now();
+
+		for (Rule rule : rules.values()){
+			Iterator<Map.Entry<String, AtomicLong>> it = rule.buckets.entrySet().iterator();
+
+			while (it.hasNext()){
+				AtomicLong bucket = it.next().getValue();
+
+				if (refill(rule, bucket.get(), now) == rule.capacity)
+					it.remove();
+			}
+		}
+	}
+
+	private long now(){
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start_time);
+	}
+
+	private static long pack(long time, long tokens){
+		return (time << TOKEN_BITS) | tokens;
+	}
+}
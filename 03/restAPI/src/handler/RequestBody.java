@@ -0,0 +1,106 @@
+package handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+// parses json request bodies without building the whole body as a string first
+public class RequestBody {
+	// bodies up to this size with a known length are read in a single call
+	private static final int SMALL_BODY_SIZE = 8 * 1024;
+
+	public static class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public TooLargeException(long max_size){
+			super(String.format("request body is larger than %d bytes", max_size));
+		}
+	}
+
+	// returns null if body isn't a valid json object
+	public static JSONObject parse(HttpExchange ex, int max_size) throws TooLargeException {
+		long content_length = getContentLength(ex);
+
+		if (content_length > max_size)
+			throw new TooLargeException(max_size);
+
+		try (InputStream input = ex.getRequestBody()){
+			if (content_length >= 0 && content_length <= SMALL_BODY_SIZE){
+				// fast path: one read into an exact sized buffer, decoded to a string once.
+				// that's two copies of a small body, cheaper than a reader and its buffers
+				byte[] body = input.readNBytes((int) content_length);
+				return new JSONObject(new String(body, StandardCharsets.UTF_8));
+			}
+
+			LimitedInputStream limited = new LimitedInputStream(input, max_size);
+			return new JSONObject(new JSONTokener(new InputStreamReader(limited, StandardCharsets.UTF_8)));
+		} catch (JSONException e){
+			// JSONTokener wraps read errors
+			if (e.getCause() instanceof TooLargeException)
+				throw (TooLargeException) e.getCause();
+
+			return null;
+		} catch (TooLargeException e){
+			throw e;
+		} catch (IOException e){
+			return null;
+		}
+	}
+
+	// returns -1 if Content-Length is missing or invalid
+	private static long getContentLength(HttpExchange ex){
+		String value = ex.getRequestHeaders().getFirst("Content-Length");
+
+		if (value == null)
+			return -1;
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	private static class LimitedInputStream extends FilterInputStream {
+		private final long max_size;
+		private long total_read = 0;
+
+		LimitedInputStream(InputStream input, long max_size){
+			super(input);
+			this.max_size = max_size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+
+			if (b != -1)
+				count(1);
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+
+			if (n > 0)
+				count(n);
+
+			return n;
+		}
+
+		private void count(int n) throws TooLargeException {
+			total_read += n;
+
+			if (total_read > max_size)
+				throw new TooLargeException(max_size);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package handler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// per-request state. the db connection is acquired on first use and shared by
+// authentication and the handler function until release() is called.
+// it also collects the time spent in each phase of the request
+public class RequestContext {
+	private DBHandler dbhandler;
+	private Bulkhead bulkhead; // null = no connection quota
+	private ConcurrencyLimiter limiter; // null = unlimited
+	private boolean limited = false; // holds a slot of limiter
+	private boolean acquire_failed = false;
+	private boolean shed = false;
+	private Connection conn; // pooled connection
+	private Connection shared_conn; // what handler code sees
+	private long query_deadline; // System.nanoTime(), only valid if has_query_deadline
+	private boolean has_query_deadline = false;
+
+	// phase times in nanoseconds. pool wait and sql are summed over all connections
+	// of the request, which may be used concurrently (see QueryFanout)
+	public final long start_time = System.nanoTime();
+	public long parse_time;
+	public long auth_time;
+	public long serialize_time;
+	private final LongAdder pool_wait_time = new LongAdder();
+	private final LongAdder sql_time = new LongAdder();
+	private final LongAdder sql_count = new LongAdder();
+
+	public RequestContext(DBHandler dbhandler, Bulkhead bulkhead, ConcurrencyLimiter limiter){
+		this.dbhandler = dbhandler;
+		this.bulkhead = bulkhead;
+		this.limiter = limiter;
+	}
+
+	// fails without waiting if the database is overloaded, see isShed(). once shed, it
+	// keeps failing for the rest of the request, which is answered with 503 anyway
+	public Connection getConnection() throws SQLException {
+		if (conn == null){
+			if (shed)
+				throw new SQLException("database is overloaded", SqlErrors.SERVER_BUSY);
+
+			if (limiter != null && !limited){
+				if (!limiter.tryAcquire()){
+					shed = true;
+					throw new SQLException("database is overloaded", SqlErrors.SERVER_BUSY);
+				}
+
+				limited = true;
+			}
+
+			if (bulkhead != null)
+				waitForQuota();
+
+			try {
+				conn = acquire();
+			} catch (SQLException e){
+				acquire_failed = true;
+				releaseQuota();
+				throw e;
+			}
+
+			shared_conn = createConnectionProxy(conn, true);
+		}
+
+		return shared_conn;
+	}
+
+	// takes a slot of the bulkhead's connection quota for openConnection() without
+	// waiting, since the request may already hold one. false if the quota is used up
+	public boolean reserveConnection(){
+		return bulkhead == null || bulkhead.tryAcquireConnection();
+	}
+
+	// gives back a slot of reserveConnection() that wasn't used by openConnection()
+	public void cancelReservation(){
+		releaseQuota();
+	}
+
+	// another pooled connection for this request, in a slot taken by reserveConnection().
+	// the caller must close it, which frees the slot. if it fails, call cancelReservation()
+	public Connection openConnection() throws SQLException {
+		return createConnectionProxy(acquire(), false);
+	}
+
+	// statements on the shared connection get the time left until deadline (System.nanoTime())
+	// as query timeout, until clearQueryDeadline(). used for sub-queries run inline
+	public void setQueryDeadline(long deadline){
+		query_deadline = deadline;
+		has_query_deadline = true;
+	}
+
+	public void clearQueryDeadline(){
+		has_query_deadline = false;
+	}
+
+	// true if the request was rejected by the concurrency limiter
+	public boolean isShed(){
+		return shed;
+	}
+
+	// returns the connection to the pool (uncommitted work is rolled back by the pool)
+	public void release(){
+		if (limited){
+			limiter.release(getPoolWaitTime() + getSqlTime(), acquire_failed);
+			limited = false;
+		}
+
+		if (conn == null)
+			return;
+
+		try {
+			conn.close();
+		} catch (SQLException e){
+			// do nothing
+		}
+
+		releaseQuota();
+		conn = null;
+		shared_conn = null;
+	}
+
+	public long getPoolWaitTime(){
+		return pool_wait_time.sum();
+	}
+
+	public long getSqlTime(){
+		return sql_time.sum();
+	}
+
+	public long getSqlCount(){
+		return sql_count.sum();
+	}
+
+	private Connection acquire() throws SQLException {
+		long start = System.nanoTime();
+
+		try {
+			return dbhandler.getConnection();
+		} finally {
+			pool_wait_time.add(System.nanoTime() - start);
+		}
+	}
+
+	// the wait for the bulkhead's connection quota counts as pool wait
+	private void waitForQuota() throws SQLException {
+		long start = System.nanoTime();
+
+		try {
+			bulkhead.acquireConnection();
+		} finally {
+			pool_wait_time.add(System.nanoTime() - start);
+		}
+	}
+
+	private void releaseQuota(){
+		if (bulkhead != null)
+			bulkhead.releaseConnection();
+	}
+
+	// statements created by the connection are timed. for the shared connection,
+	// handler code closes it when it's done with it. since the connection belongs to
+	// the request, close() is ignored there and release() does the real work
+	private Connection createConnectionProxy(Connection conn, boolean shared){
+		AtomicBoolean closed = new AtomicBoolean();
+
+		InvocationHandler invoker = (Object proxy, Method method, Object[] args) -> {
+			boolean is_close = method.getName().equals("close") && method.getParameterCount() == 0;
+
+			if (shared && is_close)
+				return null;
+
+			// other connections give their quota slot back on the first close
+			if (is_close && !closed.getAndSet(true)){
+				try {
+					return invoke(conn, method, args);
+				} finally {
+					releaseQuota();
+				}
+			}
+
+			Object result = invoke(conn, method, args);
+
+			if (result instanceof Statement)
+				return createStatementProxy((Statement) result, method.getReturnType(), shared);
+
+			return result;
+		};
+
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+			new Class<?>[] {Connection.class}, invoker);
+	}
+
+	private Object createStatementProxy(Statement stmt, Class<?> type, boolean shared){
+		InvocationHandler invoker = (Object proxy, Method method, Object[] args) -> {
+			if (!method.getName().startsWith("execute"))
+				return invoke(stmt, method, args);
+
+			if (shared && has_query_deadline)
+				applyQueryDeadline(stmt);
+
+			long start = System.nanoTime();
+
+			try {
+				return invoke(stmt, method, args);
+			} finally {
+				sql_time.add(System.nanoTime() - start);
+				sql_count.increment();
+			}
+		};
+
+		return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {type}, invoker);
+	}
+
+	// query timeouts are in whole seconds, so round up
+	private void applyQueryDeadline(Statement stmt) throws SQLException {
+		long remaining = query_deadline - System.nanoTime();
+
+		if (remaining <= 0)
+			throw new SQLTimeoutException("query deadline exceeded");
+
+		stmt.setQueryTimeout((int) Math.min(TimeUnit.NANOSECONDS.toSeconds(remaining - 1) + 1, Integer.MAX_VALUE));
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e){
+			throw e.getCause();
+		}
+	}
+}
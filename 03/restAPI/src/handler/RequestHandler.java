@@ -7,28 +7,252 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.TreeSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.function.BiFunction;
 import java.util.ArrayList;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import cfg.Config;
+import exec.ExecutorFactory;
+
 public class RequestHandler implements HttpHandler {
+	private static final int HTTP_TOO_MANY_REQUESTS = 429; // not in HttpURLConnection
+	private static final int TOKEN_SIZE = 28; // bytes
+
 	private DBHandler dbhandler;
+	// exchange attributes are shared by all exchanges of an HttpContext before java 18,
+	// so the context of each running request is kept here
+	private final ConcurrentHashMap<HttpExchange, RequestContext> contexts = new ConcurrentHashMap<HttpExchange, RequestContext>();
 	private HashMap<String, BiFunction<HttpExchange, JSONObject, RequestResult>> func_map;
-
-	public RequestHandler(DBHandler dbhandler){
+	private Semaphore inflight_requests; // null = unlimited
+	private HashMap<String, Bulkhead> bulkheads; // route -> group, routes without a group run inline
+	private ArrayList<Bulkhead> bulkhead_groups;
+	private ConcurrencyLimiter db_limiter; // null = disabled
+	private RateLimiter rate_limiter;
+	private PasswordHasher password_hasher;
+	private final SecureRandom random = new SecureRandom();
+	private int db_limit_retry_after; // seconds
+	private SessionCache sessions;
+	private SignedTokens signed_tokens; // null = tokens are kept in userlogin
+	private SessionSweeper session_sweeper;
+	private int session_ttl; // seconds
+	private int session_refresh; // seconds, 0 = no sliding expiry
+	private ViewCounter view_counter;
+	private ScoreRepair score_repair;
+	private GroupCommit writes;
+	private ScoreCoalescer video_scores;
+	private ScoreCoalescer comment_scores;
+	private IdFilter video_ids;
+	private IdFilter comment_ids;
+	private IdFilter channel_ids;
+	private SegmentedLruCache<Integer, VideoInfo> video_cache;
+	private SingleFlightCache<SearchResult> search_cache;
+	private QueryFanout fanout;
+	private Metrics metrics;
+	private AsyncLogger slow_log; // null = disabled
+	private long slow_request_threshold; // nanoseconds
+	private int max_body_size;
+	private int page_size;
+	private int max_page_size;
+
+	public RequestHandler(DBHandler dbhandler, Config config){
 		this.dbhandler = dbhandler;
+
+		if (config.max_inflight_requests > 0)
+			inflight_requests = new Semaphore(config.max_inflight_requests);
+
+		max_body_size = config.max_body_size;
+		page_size = config.page_size;
+		max_page_size = config.max_page_size;
+		sessions = new SessionCache(config.session_cache_size, config.session_cache_ttl);
+
+		session_ttl = config.session_ttl;
+		session_refresh = config.session_refresh;
+
+		if (config.session_tokens.equals("signed"))
+			signed_tokens = new SignedTokens(config.session_secret, config.session_cache_size, config.session_ttl);
+
+		session_sweeper = new SessionSweeper(dbhandler, config.session_sweep_interval, config.session_sweep_batch);
+		session_sweeper.start();
+
+		password_hasher = new PasswordHasher(config.password_hash_iterations, config.password_hash_threads,
+			config.password_hash_queue);
+
+		video_ids = new IdFilter(dbhandler, "video", "video_id", config.id_filter_max_id, config.id_filter_rebuild_interval);
+		video_ids.start();
+		comment_ids = new IdFilter(dbhandler, "comments", "comment_id", config.id_filter_max_id, config.id_filter_rebuild_interval);
+		comment_ids.start();
+		channel_ids = new IdFilter(dbhandler, "channel", "channel_id", config.id_filter_max_id, config.id_filter_rebuild_interval);
+		channel_ids.start();
+
+		video_cache = new SegmentedLruCache<Integer, VideoInfo>(config.video_cache_size);
+		search_cache = new SingleFlightCache<SearchResult>(config.search_cache_size, config.search_cache_ttl);
+
+		view_counter = new ViewCounter(dbhandler, config.view_flush_interval);
+		view_counter.start();
+
+		score_repair = new ScoreRepair(dbhandler, config.score_repair_interval);
+		score_repair.start();
+
+		writes = new GroupCommit(config.write_batch_size, config.write_batch_linger, config.write_batch_queue);
+		writes.start();
+
+		video_scores = new ScoreCoalescer(dbhandler, "video_score", "video", "video_id", config.score_coalesce_window);
+		video_scores.start();
+		comment_scores = new ScoreCoalescer(dbhandler, "comment_score", "comments", "comment_id", config.score_coalesce_window);
+		comment_scores.start();
+
+		if (config.slow_request_threshold > 0){
+			slow_request_threshold = config.slow_request_threshold * 1_000_000L;
+			slow_log = new AsyncLogger("slow-log", config.slow_log_queue);
+		}
+
+		fanout = new QueryFanout(ExecutorFactory.create(config.execution_mode, config.fanout_threads, 0, "query-fanout"),
+			config.fanout_max_per_endpoint, config.fanout_timeout);
+
+		if (config.db_limit_max > 0){
+			db_limiter = new ConcurrencyLimiter(config.db_limit_initial, config.db_limit_min, config.db_limit_max,
+				config.db_limit_latency, config.db_limit_backoff);
+			db_limit_retry_after = config.db_limit_retry_after;
+		}
+
 		initRequestHashMap();
+		initBulkheads(config);
+		initRateLimits(config);
+		initMetrics();
+	}
+
+	// called after the server has stopped accepting requests
+	public void shutdown(){
+		writes.shutdown();
+		video_scores.shutdown();
+		comment_scores.shutdown();
+		view_counter.shutdown();
+		score_repair.shutdown();
+		video_ids.shutdown();
+		comment_ids.shutdown();
+		channel_ids.shutdown();
+		rate_limiter.shutdown();
+		session_sweeper.shutdown();
 	}
 
 	@Override
 	public void handle(HttpExchange ex){
+		// the worker queue is full
+		if (ExecutorFactory.isOverflow()){
+			sendResult(ex, createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE));
+			return;
+		}
+
+		String query = ex.getRequestURI().getQuery();
+		String route = (query == null)? "" : query.toLowerCase();
+
+		if (rate_limiter.isEnabled()){
+			long wait = rate_limiter.tryAcquire(route, getClientKey(ex));
+
+			if (wait > 0){
+				ex.getResponseHeaders().set("Retry-After", Long.toString((wait + 999) / 1000));
+				sendResult(ex, createFailedResult("too many requests", HTTP_TOO_MANY_REQUESTS));
+				return;
+			}
+		}
+
+		if (inflight_requests != null && !inflight_requests.tryAcquire()){
+			sendResult(ex, createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE));
+			return;
+		}
+
+		Bulkhead bulkhead = bulkheads.get(route);
+
+		// created here, so the time spent in the bulkhead's queue is part of the request time
+		RequestContext context = new RequestContext(dbhandler, bulkhead, db_limiter);
+
+		if (bulkhead == null){
+			try {
+				handleRequest(ex, context);
+			} finally {
+				releaseInflight();
+			}
+
+			return;
+		}
+
+		boolean queued = bulkhead.execute(() -> {
+			try {
+				handleRequest(ex, context);
+			} finally {
+				releaseInflight();
+			}
+		});
+
+		if (!queued){
+			releaseInflight();
+			sendResult(ex, createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE));
+		}
+	}
+
+	// logged in users are limited by userid if their session is cached (no db work here),
+	// everyone else by ip. an unverified token can't be used to pose as another user
+	private String getClientKey(HttpExchange ex){
+		String header = ex.getRequestHeaders().getFirst("X-token");
+
+		if (header != null){
+			String[] token_list = header.split(",");
+
+			try {
+				if (token_list.length == 2 && isKnownSession(Integer.parseInt(token_list[0]), token_list[1]))
+					return "user:" + token_list[0];
+			} catch (NumberFormatException e){
+				// fall through
+			}
+		}
+
+		return ex.getRemoteAddress().getAddress().getHostAddress();
+	}
+
+	private boolean isKnownSession(int userid, String token){
+		if (signed_tokens != null && SignedTokens.isSigned(token))
+			return signed_tokens.peek(userid, token);
+
+		return sessions.peek(userid, token);
+	}
+
+	private void releaseInflight(){
+		if (inflight_requests != null)
+			inflight_requests.release();
+	}
+
+	private void handleRequest(HttpExchange ex, RequestContext context){
+		contexts.put(ex, context);
+
+		try {
+			dispatch(ex, context);
+		} finally {
+			contexts.remove(ex);
+			context.release();
+		}
+	}
+
+	private void dispatch(HttpExchange ex, RequestContext context){
 		String method = ex.getRequestURI().getQuery().toLowerCase();
 
+		if (method.equals("metrics")){
+			sendText(ex, metrics.format());
+			return;
+		}
+
 		RequestResult result;
 		BiFunction<HttpExchange, JSONObject, RequestResult> handler_function = func_map.get(method);
 
@@ -39,10 +263,28 @@ public class RequestHandler implements HttpHandler {
 			result.response.put("result", false);
 			result.response.put("error", "invalid method");
 		} else {
-			JSONObject json = getReqParams(ex);
+			JSONObject json = null;
+			boolean too_large = false;
+			long parse_start = System.nanoTime();
+
+			try {
+				json = getReqParams(ex);
+			} catch (RequestBody.TooLargeException e){
+				too_large = true;
+			} finally {
+				context.parse_time = System.nanoTime() - parse_start;
+			}
 
-			if (json != null || ex.getRequestMethod().equals("GET") ){
+			if (too_large){
+				result = createFailedResult("request body is too large", HttpURLConnection.HTTP_ENTITY_TOO_LARGE);
+			} else if (json != null || ex.getRequestMethod().equals("GET") ){
 				result = handler_function.apply(ex, json);
+
+				// the handler only saw an sql error
+				if (context.isShed()){
+					ex.getResponseHeaders().set("Retry-After", Integer.toString(db_limit_retry_after));
+					result = createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE);
+				}
 			} else {
 				result = new RequestResult();
 				result.response_code = HttpURLConnection.HTTP_BAD_REQUEST;
@@ -52,13 +294,32 @@ public class RequestHandler implements HttpHandler {
 			}
 		}
 
-		String out_response = result.response.toString();
+		long serialize_start = System.nanoTime();
+		sendResult(ex, result);
+		context.serialize_time = System.nanoTime() - serialize_start;
+
+		if (handler_function == null)
+			return;
+
+		long total_time = System.nanoTime() - context.start_time;
+		metrics.record(method, total_time, !result.response.optBoolean("result"));
 
+		if (slow_log != null && total_time > slow_request_threshold)
+			slow_log.log(formatSlowRequest(method, total_time, context));
+	}
+
+	// auth includes its own pool wait and sql. pool wait and sql are summed over
+	// concurrent sub-queries, so they can be larger than the total
+	private static String formatSlowRequest(String method, long total_time, RequestContext context){
+		return String.format(Locale.ROOT, "slow request: %s %.3fms [parse %.3fms, auth %.3fms, pool wait %.3fms,"
+			+ " sql %.3fms in %d statements, serialize %.3fms]",
+			method, total_time / 1e6, context.parse_time / 1e6, context.auth_time / 1e6, context.getPoolWaitTime() / 1e6,
+			context.getSqlTime() / 1e6, context.getSqlCount(), context.serialize_time / 1e6);
+	}
+
+	private void sendResult(HttpExchange ex, RequestResult result){
 		try {
-			ex.sendResponseHeaders(result.response_code, out_response.getBytes("UTF-8").length);
-			OutputStream output = ex.getResponseBody();
-			output.write(out_response.getBytes("UTF-8"));
-			output.close();
+			ResponseWriter.write(ex, result.response_code, result.response);
 		} catch (IOException e){
 			System.err.printf("sending data failed [%s]\n", e.getMessage());
 		}
@@ -66,28 +327,30 @@ public class RequestHandler implements HttpHandler {
 		ex.close();
 	}
 
-	private JSONObject getReqParams(HttpExchange ex){
-		String request_data = new String();
-
+	private void sendText(HttpExchange ex, String text){
 		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(ex.getRequestBody(), "UTF-8"));
-			for (String line; (line = reader.readLine()) != null;)
-				request_data += line;
-
-			reader.close();
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			ex.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+			ex.getResponseBody().write(body);
 		} catch (IOException e){
-			return null;
+			System.err.printf("sending data failed [%s]\n", e.getMessage());
 		}
 
-		JSONObject json = null;
+		ex.close();
+	}
 
-		try {
-			json = new JSONObject(request_data);
-		} catch (JSONException e){
-			return null;
-		}
+	private RequestContext getContext(HttpExchange ex){
+		return contexts.get(ex);
+	}
+
+	// request-scoped connection. it's shared between getUserID and the handler function
+	private Connection getConnection(HttpExchange ex) throws SQLException {
+		return getContext(ex).getConnection();
+	}
 
-		return json;
+	private JSONObject getReqParams(HttpExchange ex) throws RequestBody.TooLargeException {
+		return RequestBody.parse(ex, max_body_size);
 	}
 
 	private void initRequestHashMap(){
@@ -114,6 +377,79 @@ public class RequestHandler implements HttpHandler {
 		func_map.put("search", (HttpExchange ex, JSONObject data) -> {return search(ex, data);}); // ++video_watch
 	}
 
+	private void initBulkheads(Config config){
+		bulkheads = new HashMap<String, Bulkhead>();
+		bulkhead_groups = new ArrayList<Bulkhead>();
+
+		for (Config.BulkheadGroup group : config.bulkheads){
+			if (group.threads <= 0)
+				continue;
+
+			Bulkhead bulkhead = new Bulkhead(group.name, config.execution_mode, group.threads, group.queue, group.connections);
+			bulkhead_groups.add(bulkhead);
+
+			for (String route : group.routes.split(",")){
+				route = route.trim().toLowerCase();
+
+				if (route.isEmpty())
+					continue;
+
+				if (!func_map.containsKey(route))
+					System.err.printf("bulkhead %s: unknown route \"%s\"\n", group.name, route);
+				else if (bulkheads.put(route, bulkhead) != null)
+					System.err.printf("bulkhead %s: route \"%s\" is in more than one group\n", group.name, route);
+			}
+		}
+	}
+
+	private void initRateLimits(Config config){
+		rate_limiter = new RateLimiter(config.rate_limit_clients);
+
+		for (Config.RateLimit limit : config.rate_limits){
+			if (!func_map.containsKey(limit.route)){
+				System.err.printf("rate limit: unknown route \"%s\"\n", limit.route);
+				continue;
+			}
+
+			rate_limiter.addRule(limit.route, limit.rate, limit.burst);
+		}
+
+		rate_limiter.start();
+	}
+
+	// each component exports its own gauges and counters
+	private void initMetrics(){
+		metrics = new Metrics(func_map.keySet());
+
+		dbhandler.registerMetrics(metrics);
+		sessions.registerMetrics(metrics);
+		session_sweeper.registerMetrics(metrics);
+
+		if (signed_tokens != null)
+			signed_tokens.registerMetrics(metrics);
+
+		video_cache.registerMetrics(metrics, "video_cache");
+		search_cache.registerMetrics(metrics, "search_cache");
+		view_counter.registerMetrics(metrics);
+		writes.registerMetrics(metrics);
+		video_scores.registerMetrics(metrics);
+		comment_scores.registerMetrics(metrics);
+		video_ids.registerMetrics(metrics, "video_id_filter");
+		comment_ids.registerMetrics(metrics, "comment_id_filter");
+		channel_ids.registerMetrics(metrics, "channel_id_filter");
+		password_hasher.registerMetrics(metrics);
+		rate_limiter.registerMetrics(metrics);
+
+		if (db_limiter != null)
+			db_limiter.registerMetrics(metrics);
+
+		for (Bulkhead bulkhead : bulkhead_groups)
+			bulkhead.registerMetrics(metrics);
+
+		if (slow_log != null)
+			slow_log.registerMetrics(metrics, "slow_log");
+	}
+
 	private RequestResult createFailedResult(String error){
 		RequestResult result = new RequestResult();
 
@@ -150,47 +486,49 @@ public class RequestHandler implements HttpHandler {
 		if (password.isEmpty() || password.length() < 6)
 			return createFailedResult("password length is less than 6 characters");
 
+		// hashed before taking a db connection
+		String password_hash;
+
+		try {
+			password_hash = password_hasher.hash(password);
+		} catch (PasswordHasher.BusyException e){
+			return createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE);
+		}
+
 		Connection conn = null;
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
-			ResultSet sql_result;
 
-			// check duplicate username
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM users WHERE username = ?");
+			// validate email
+			// (add later)
+
+			// create new user. duplicate username/email fail the unique constraints
+			stmt = conn.prepareStatement("INSERT INTO users(username, password, email, reg_date) VALUES(?, ?, ?, now())");
 			stmt.setString(1, username);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			stmt.setString(2, password_hash);
+			stmt.setString(3, email);
 
-			if (sql_result.getInt(1) == 1){
-				conn.close();
-				return createFailedResult("username already exists");
-			}
+			try {
+				stmt.execute();
+			} catch (SQLException e){
+				String constraint = SqlErrors.getViolatedConstraint(e, SqlErrors.UNIQUE_VIOLATION);
 
-			// check duplicate email
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM users WHERE email = ?");
-			stmt.setString(1, email);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+				if ("users_username_key".equals(constraint)){
+					conn.close();
+					return createFailedResult("username already exists");
+				}
 
-			if (sql_result.getInt(1) == 1){
-				conn.close();
-				return createFailedResult("email already exists");
-			}
+				if ("users_email_key".equals(constraint)){
+					conn.close();
+					return createFailedResult("email already exists");
+				}
 
-			// validate email
-			// (add later)
+				throw e;
+			}
 
-			// create new user
-			// Note: CREATE EXTENSION IF NOT EXISTS pgcrypto;
-			stmt = conn.prepareStatement("INSERT INTO users(username, password, email, reg_date) VALUES(?, crypt(?, gen_salt(?)), ?, now())");
-			stmt.setString(1, username);
-			stmt.setString(2, password);
-			stmt.setString(3, "md5");
-			stmt.setString(4, email);
-			stmt.execute();
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -241,16 +579,20 @@ public class RequestHandler implements HttpHandler {
 
 		int userid = 0;
 		String token = null;
+		long session_epoch = 0;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
-			// check username & password
-			stmt = conn.prepareStatement("SELECT userid FROM users WHERE username=? AND password=crypt(?, password)");
-			stmt.setString(1, username);
-			stmt.setString(2, password);
+			// get the password hash. old md5-crypt rows can only be checked by the
+			// database (pgcrypto), that happens in the same query
+			stmt = conn.prepareStatement("SELECT userid, password,"
+				+ " CASE WHEN password LIKE '$1$%' THEN password = crypt(?, password) END,"
+				+ " session_generation FROM users WHERE username=?");
+			stmt.setString(1, password);
+			stmt.setString(2, username);
 			sql_result = stmt.executeQuery();
 
 			if(!sql_result.next()){
@@ -259,32 +601,68 @@ public class RequestHandler implements HttpHandler {
 			}
 
 			userid = sql_result.getInt(1);
+			String stored_hash = sql_result.getString(2);
+			boolean legacy_match = sql_result.getBoolean(3);
+			int generation = sql_result.getInt(4);
 
-			// generate token
-			stmt = conn.prepareStatement("SELECT encode(digest(now()::text || random() || ?, ?), ?)");
-			stmt.setInt(1, userid);
-			stmt.setString(2, "sha224");
-			stmt.setString(3, "hex");
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			// the connection isn't needed while hashing
+			conn.close();
+			getContext(ex).release();
 
-			token = sql_result.getString(1);
+			String new_hash = null;
 
-			conn.setAutoCommit(false);
+			try {
+				boolean valid = PasswordHasher.isLegacy(stored_hash)? legacy_match : password_hasher.verify(password, stored_hash);
 
-			stmt = conn.prepareStatement("DELETE FROM userlogin WHERE userid = ?");
-			stmt.setInt(1, userid);
-			stmt.execute();
+				if (!valid)
+					return createFailedResult("invalid username/password");
 
-			stmt = conn.prepareStatement("INSERT INTO userlogin values(?, decode(?, ?))");
-			stmt.setInt(1, userid);
-			stmt.setString(2, token);
-			stmt.setString(3, "hex");
-			stmt.execute();
+				if (password_hasher.needsRehash(stored_hash))
+					new_hash = password_hasher.hash(password);
+			} catch (PasswordHasher.BusyException e){
+				return createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE);
+			}
 
-			conn.commit();
+			byte[] token_bytes = null;
 
-			conn.close();
+			if (signed_tokens != null){
+				// nothing to store, the token is valid until the next logout
+				token = signed_tokens.issue(userid, generation);
+				signed_tokens.setGeneration(userid, generation);
+			} else {
+				token_bytes = new byte[TOKEN_SIZE];
+				random.nextBytes(token_bytes);
+				token = HexFormat.of().formatHex(token_bytes);
+			}
+
+			session_epoch = sessions.getEpoch(userid);
+
+			if (new_hash == null && token_bytes == null){
+				conn = null;
+			} else {
+				conn = getConnection(ex);
+
+				// upgrade old hashes, unless the password was changed meanwhile
+				if (new_hash != null){
+					stmt = conn.prepareStatement("UPDATE users SET password=? WHERE userid=? AND password=?");
+					stmt.setString(1, new_hash);
+					stmt.setInt(2, userid);
+					stmt.setString(3, stored_hash);
+					stmt.executeUpdate();
+				}
+
+				// one token per user, a new login replaces the old one
+				if (token_bytes != null){
+					stmt = conn.prepareStatement("INSERT INTO userlogin VALUES(?, ?, now() + ? * interval '1 second')"
+						+ " ON CONFLICT (userid) DO UPDATE SET token = excluded.token, expires_at = excluded.expires_at");
+					stmt.setInt(1, userid);
+					stmt.setBytes(2, token_bytes);
+					stmt.setInt(3, session_ttl);
+					stmt.execute();
+				}
+
+				conn.close();
+			}
 		} catch (SQLException e){
 			sql_error = true;
 		}
@@ -300,6 +678,9 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		if (signed_tokens == null)
+			sessions.put(userid, token, getCacheableAge(session_ttl), session_epoch);
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -321,7 +702,7 @@ public class RequestHandler implements HttpHandler {
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -329,6 +710,19 @@ public class RequestHandler implements HttpHandler {
 			stmt.setInt(1, userid);
 			stmt.execute();
 
+			sessions.remove(userid);
+
+			// revokes all signed tokens of the user
+			if (signed_tokens != null){
+				stmt = conn.prepareStatement("UPDATE users SET session_generation = session_generation + 1"
+					+ " WHERE userid=? RETURNING session_generation");
+				stmt.setInt(1, userid);
+				sql_result = stmt.executeQuery();
+
+				if (sql_result.next())
+					signed_tokens.setGeneration(userid, sql_result.getInt(1));
+			}
+
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -357,6 +751,14 @@ public class RequestHandler implements HttpHandler {
 
 	private int getUserID(HttpExchange ex){
 		// returns userid if login or 0 if not login
+		long start = System.nanoTime();
+		int userid = lookupUserID(ex);
+		getContext(ex).auth_time += System.nanoTime() - start;
+
+		return userid;
+	}
+
+	private int lookupUserID(HttpExchange ex){
 		Headers headers = ex.getRequestHeaders();
 
 		if (!headers.containsKey("X-token"))
@@ -380,15 +782,24 @@ public class RequestHandler implements HttpHandler {
 
 		String token = token_list[1];
 
+		if (signed_tokens != null && SignedTokens.isSigned(token))
+			return lookupSignedUserID(ex, userid, token);
+
+		if (sessions.contains(userid, token))
+			return userid;
+
 		Connection conn = null;
 		boolean sql_error = false;
+		int remaining = 0; // seconds until the session expires
+		long session_epoch = sessions.getEpoch(userid);
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
-			stmt = conn.prepareStatement("SELECT userid FROM userlogin WHERE userid=? AND encode(token,?)=?");
+			stmt = conn.prepareStatement("SELECT userid, EXTRACT(EPOCH FROM expires_at - now())::int FROM userlogin"
+				+ " WHERE userid=? AND encode(token,?)=? AND expires_at > now()");
 			stmt.setInt(1, userid);
 			stmt.setString(2, "hex");
 			stmt.setString(3, token);
@@ -400,6 +811,17 @@ public class RequestHandler implements HttpHandler {
 			}
 
 			userid = sql_result.getInt(1);
+			remaining = sql_result.getInt(2);
+
+			// sliding expiry, written at most once per session_refresh
+			if (session_refresh > 0 && remaining < session_ttl - session_refresh){
+				stmt = conn.prepareStatement("UPDATE userlogin SET expires_at = now() + ? * interval '1 second' WHERE userid=?");
+				stmt.setInt(1, session_ttl);
+				stmt.setInt(2, userid);
+				stmt.executeUpdate();
+
+				remaining = session_ttl;
+			}
 
 			conn.close();
 		} catch (SQLException e){
@@ -418,6 +840,67 @@ public class RequestHandler implements HttpHandler {
 			return 0;
 		}
 
+		sessions.put(userid, token, getCacheableAge(remaining), session_epoch);
+
+		return userid;
+	}
+
+	// a cached session is never read from the database, so with sliding expiry it's only
+	// cached until its renewal is due: the next lookup after that extends it
+	private int getCacheableAge(int remaining){
+		if (session_refresh > 0)
+			return remaining - (session_ttl - session_refresh);
+
+		return remaining;
+	}
+
+	// no db work unless the user's session generation isn't cached
+	private int lookupSignedUserID(HttpExchange ex, int userid, String token){
+		SignedTokens.Token parsed = signed_tokens.parse(userid, token);
+
+		if (parsed == null)
+			return 0;
+
+		Integer generation = signed_tokens.getGeneration(userid);
+
+		if (generation == null){
+			Connection conn = null;
+
+			try {
+				conn = getConnection(ex);
+				PreparedStatement stmt = conn.prepareStatement("SELECT session_generation FROM users WHERE userid=?");
+				stmt.setInt(1, userid);
+				ResultSet sql_result = stmt.executeQuery();
+
+				if (sql_result.next())
+					generation = sql_result.getInt(1);
+
+				conn.close();
+			} catch (SQLException e){
+				if (conn != null){
+					try {
+						conn.close();
+					} catch (SQLException e2){
+						// do nothing
+					}
+				}
+
+				return 0;
+			}
+
+			if (generation == null)
+				return 0;
+
+			signed_tokens.setGeneration(userid, generation);
+		}
+
+		if (!signed_tokens.isCurrent(parsed, generation))
+			return 0;
+
+		// sliding expiry: the client should use the renewed token from now on
+		if (session_refresh > 0 && parsed.getAge() >= session_refresh)
+			ex.getResponseHeaders().set("X-TOKEN", String.format("%d,%s", userid, signed_tokens.issue(userid, generation)));
+
 		return userid;
 	}
 
@@ -453,14 +936,15 @@ public class RequestHandler implements HttpHandler {
 
 		Connection conn = null;
 		boolean sql_error = false;
+		int videoid = 0;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
 			String query = "INSERT INTO video(userid, name, filename, description, duration, upload_date)"
-				+ "VALUES (?, ?, ?, ?, ?, now())";
+				+ "VALUES (?, ?, ?, ?, ?, now()) RETURNING video_id";
 
 			stmt = conn.prepareStatement(query);
 			stmt.setInt(1, userid);
@@ -469,7 +953,9 @@ public class RequestHandler implements HttpHandler {
 			stmt.setString(4, description);
 			stmt.setInt(5, 60); // this is symbolic
 
-			stmt.executeUpdate();
+			sql_result = stmt.executeQuery();
+			sql_result.next();
+			videoid = sql_result.getInt(1);
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -487,6 +973,9 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		video_ids.add(videoid);
+		search_cache.invalidateAll();
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -519,7 +1008,7 @@ public class RequestHandler implements HttpHandler {
 		boolean delete_okay = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -545,6 +1034,13 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		if (delete_okay){
+			view_counter.remove(videoid);
+			search_cache.invalidateAll();
+			video_cache.remove(videoid);
+			video_ids.remove(videoid);
+		}
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -591,17 +1087,22 @@ public class RequestHandler implements HttpHandler {
 
 		Connection conn = null;
 		boolean sql_error = false;
+		int channel_id = 0;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
+			ResultSet sql_result;
 
-			stmt = conn.prepareStatement("INSERT INTO channel(userid, name, description, creation_date) VALUES (?,?,?,now())");
+			stmt = conn.prepareStatement("INSERT INTO channel(userid, name, description, creation_date) VALUES (?,?,?,now())"
+				+ " RETURNING channel_id");
 			stmt.setInt(1, userid);
 			stmt.setString(2, name);
 			stmt.setString(3, description);
 
-			stmt.executeUpdate();
+			sql_result = stmt.executeQuery();
+			sql_result.next();
+			channel_id = sql_result.getInt(1);
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -619,6 +1120,9 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		channel_ids.add(channel_id);
+		search_cache.invalidateAll();
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -651,7 +1155,7 @@ public class RequestHandler implements HttpHandler {
 		boolean delete_okay = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -677,6 +1181,11 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		if (delete_okay){
+			search_cache.invalidateAll();
+			channel_ids.remove(channel_id);
+		}
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -725,52 +1234,40 @@ public class RequestHandler implements HttpHandler {
 			}
 		}
 
+		if (!video_ids.mightExist(video_id))
+			return createFailedResult(String.format("videoid %d doesn't exist", video_id));
+
+		if (reply_to > 0 && !comment_ids.mightExist(reply_to))
+			return createFailedResult(String.format("comment_id %d doesn't exist", reply_to));
+
 		Connection conn = null;
 		boolean sql_error = false;
+		int comment_id = 0;
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			conn = getConnection(ex);
 
-			// check videoid
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM video WHERE video_id = ?");
-			stmt.setInt(1, video_id);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			// submit. a missing video or reply_to comment fails the foreign keys
+			int parent_id = reply_to;
 
-			if (sql_result.getInt(1) != 1){
-				conn.close();
-				return createFailedResult(String.format("videoid %d doesn't exist", video_id));
-			}
+			try {
+				comment_id = writes.run(conn, (Connection c) -> insertComment(c, userid, video_id, parent_id, comment));
+			} catch (SQLException e){
+				String constraint = SqlErrors.getViolatedConstraint(e, SqlErrors.FOREIGN_KEY_VIOLATION);
 
-			// check reply_to
-			if (reply_to > 0){
-				stmt = conn.prepareStatement("SELECT COUNT(*) FROM comments WHERE comment_id = ?");
-				stmt.setInt(1, reply_to);
-				sql_result = stmt.executeQuery();
-				sql_result.next();
+				if ("comments_video_id_fkey".equals(constraint)){
+					conn.close();
+					return createFailedResult(String.format("videoid %d doesn't exist", video_id));
+				}
 
-				if (sql_result.getInt(1) != 1){
+				if ("comments_parent_id_fkey".equals(constraint)){
 					conn.close();
 					return createFailedResult(String.format("comment_id %d doesn't exist", reply_to));
 				}
-			}
-
-			// submit
-			String query = "INSERT INTO comments(userid, video_id, parent_id, comment, submit_date)"
-				+ "VALUES (?, ?, ?, ?, now())";
-			stmt = conn.prepareStatement(query);
-			stmt.setInt(1, userid);
-			stmt.setInt(2, video_id);
 
-			if (reply_to > 0)
-				stmt.setInt(3, reply_to);
-			else
-				stmt.setNull(3, java.sql.Types.NULL);
-			stmt.setString(4, comment);
+				throw e;
+			}
 
-			stmt.executeUpdate();
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -788,6 +1285,8 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		comment_ids.add(comment_id);
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -798,6 +1297,25 @@ public class RequestHandler implements HttpHandler {
 		return result;
 	}
 
+	// returns the new comment_id
+	private int insertComment(Connection conn, int userid, int video_id, int reply_to, String comment) throws SQLException {
+		String query = "INSERT INTO comments(userid, video_id, parent_id, comment, submit_date)"
+			+ "VALUES (?, ?, ?, ?, now()) RETURNING comment_id";
+		PreparedStatement stmt = conn.prepareStatement(query);
+		stmt.setInt(1, userid);
+		stmt.setInt(2, video_id);
+
+		if (reply_to > 0)
+			stmt.setInt(3, reply_to);
+		else
+			stmt.setNull(3, java.sql.Types.NULL);
+		stmt.setString(4, comment);
+
+		ResultSet sql_result = stmt.executeQuery();
+		sql_result.next();
+		return sql_result.getInt(1);
+	}
+
 	private RequestResult removeComment(HttpExchange ex, JSONObject data){
 		int userid = getUserID(ex);
 
@@ -820,7 +1338,7 @@ public class RequestHandler implements HttpHandler {
 		boolean delete_okay = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -846,6 +1364,9 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		if (delete_okay)
+			comment_ids.remove(comment_id);
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -898,43 +1419,49 @@ public class RequestHandler implements HttpHandler {
 				return createFailedResult("invalid score. must be 'like' or 'dislike'");
 		}
 
+		if (!video_ids.mightExist(videoid))
+			return createFailedResult(String.format("videoid %d doesn't exist", videoid));
+
 		Connection conn = null;
 		boolean sql_error = false;
 		boolean delete_okay = false;
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			conn = getConnection(ex);
 
-			// check videoid
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM video WHERE video_id = ?");
-			stmt.setInt(1, videoid);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			if (video_scores.isEnabled()){
+				// written later, only the latest score of a burst
+				int had_score = video_scores.set(conn, userid, videoid, method.equals("add")? score : null);
 
-			if (sql_result.getInt(1) != 1){
-				conn.close();
-				return createFailedResult(String.format("videoid %d doesn't exist", videoid));
-			}
+				if (had_score < 0){
+					conn.close();
+					return createFailedResult(String.format("videoid %d doesn't exist", videoid));
+				}
 
-			// delete old score and submit new one
-			conn.setAutoCommit(false);
+				delete_okay = (had_score > 0);
+			} else if (method.equals("add")){
+				String new_score = score;
 
-			stmt = conn.prepareStatement("DELETE FROM video_score WHERE (userid,video_id) = (?,?)");
-			stmt.setInt(1, userid);
-			stmt.setInt(2, videoid);
-			delete_okay = (stmt.executeUpdate() != 0);
+				try {
+					writes.run(conn, (Connection c) -> addVideoScore(c, userid, videoid, new_score));
+				} catch (SQLException e){
+					if (!SqlErrors.isViolation(e, SqlErrors.FOREIGN_KEY_VIOLATION, "video_score_video_id_fkey"))
+						throw e;
 
-			if (method.equals("add")){
-				stmt = conn.prepareStatement("INSERT INTO video_score VALUES(?,?,?::score_t)");
-				stmt.setInt(1, videoid);
-				stmt.setInt(2, userid);
-				stmt.setString(3, score);
-				stmt.executeUpdate();
+					conn.close();
+					return createFailedResult(String.format("videoid %d doesn't exist", videoid));
+				}
+			} else {
+				int deleted = writes.run(conn, (Connection c) -> removeVideoScore(c, userid, videoid));
+
+				if (deleted < 0){
+					conn.close();
+					return createFailedResult(String.format("videoid %d doesn't exist", videoid));
+				}
+
+				delete_okay = (deleted > 0);
 			}
 
-			conn.commit();
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -969,6 +1496,36 @@ public class RequestHandler implements HttpHandler {
 		return result;
 	}
 
+	// submits a new score or replaces the old one. a missing video fails the foreign key
+	private boolean addVideoScore(Connection conn, int userid, int videoid, String score) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("INSERT INTO video_score VALUES(?,?,?::score_t)"
+			+ " ON CONFLICT (video_id, userid) DO UPDATE SET score = excluded.score"
+			+ " WHERE video_score.score <> excluded.score");
+		stmt.setInt(1, videoid);
+		stmt.setInt(2, userid);
+		stmt.setString(3, score);
+		stmt.executeUpdate();
+
+		return true;
+	}
+
+	// returns 1 if the score was deleted, 0 if there was none or -1 if the video doesn't exist
+	private int removeVideoScore(Connection conn, int userid, int videoid) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("WITH deleted AS (DELETE FROM video_score"
+			+ " WHERE (userid,video_id) = (?,?) RETURNING 1)"
+			+ " SELECT (SELECT COUNT(*) FROM deleted), EXISTS(SELECT 1 FROM video WHERE video_id = ?)");
+		stmt.setInt(1, userid);
+		stmt.setInt(2, videoid);
+		stmt.setInt(3, videoid);
+		ResultSet sql_result = stmt.executeQuery();
+		sql_result.next();
+
+		if (sql_result.getInt(1) != 0)
+			return 1;
+
+		return sql_result.getBoolean(2)? 0 : -1;
+	}
+
 	private RequestResult scoreComment(HttpExchange ex, JSONObject data){
 		int userid = getUserID(ex);
 
@@ -1007,43 +1564,49 @@ public class RequestHandler implements HttpHandler {
 				return createFailedResult("invalid score. must be 'like' or 'dislike'");
 		}
 
+		if (!comment_ids.mightExist(comment_id))
+			return createFailedResult(String.format("comment %d doesn't exist", comment_id));
+
 		Connection conn = null;
 		boolean sql_error = false;
 		boolean delete_okay = false;
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			conn = getConnection(ex);
 
-			// check videoid
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM comments WHERE comment_id = ?");
-			stmt.setInt(1, comment_id);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			if (comment_scores.isEnabled()){
+				// written later, only the latest score of a burst
+				int had_score = comment_scores.set(conn, userid, comment_id, method.equals("add")? score : null);
 
-			if (sql_result.getInt(1) != 1){
-				conn.close();
-				return createFailedResult(String.format("comment %d doesn't exist", comment_id));
-			}
+				if (had_score < 0){
+					conn.close();
+					return createFailedResult(String.format("comment %d doesn't exist", comment_id));
+				}
 
-			// delete old score and submit new one
-			conn.setAutoCommit(false);
+				delete_okay = (had_score > 0);
+			} else if (method.equals("add")){
+				String new_score = score;
 
-			stmt = conn.prepareStatement("DELETE FROM comment_score WHERE (userid,comment_id) = (?,?)");
-			stmt.setInt(1, userid);
-			stmt.setInt(2, comment_id);
-			delete_okay = (stmt.executeUpdate() != 0);
+				try {
+					writes.run(conn, (Connection c) -> addCommentScore(c, userid, comment_id, new_score));
+				} catch (SQLException e){
+					if (!SqlErrors.isViolation(e, SqlErrors.FOREIGN_KEY_VIOLATION, "comment_score_comment_id_fkey"))
+						throw e;
 
-			if (method.equals("add")){
-				stmt = conn.prepareStatement("INSERT INTO comment_score VALUES(?,?,?::score_t)");
-				stmt.setInt(1, comment_id);
-				stmt.setInt(2, userid);
-				stmt.setString(3, score);
-				stmt.executeUpdate();
+					conn.close();
+					return createFailedResult(String.format("comment %d doesn't exist", comment_id));
+				}
+			} else {
+				int deleted = writes.run(conn, (Connection c) -> removeCommentScore(c, userid, comment_id));
+
+				if (deleted < 0){
+					conn.close();
+					return createFailedResult(String.format("comment %d doesn't exist", comment_id));
+				}
+
+				delete_okay = (deleted > 0);
 			}
 
-			conn.commit();
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -1078,6 +1641,36 @@ public class RequestHandler implements HttpHandler {
 		return result;
 	}
 
+	// submits a new score or replaces the old one. a missing comment fails the foreign key
+	private boolean addCommentScore(Connection conn, int userid, int comment_id, String score) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("INSERT INTO comment_score VALUES(?,?,?::score_t)"
+			+ " ON CONFLICT (comment_id, userid) DO UPDATE SET score = excluded.score"
+			+ " WHERE comment_score.score <> excluded.score");
+		stmt.setInt(1, comment_id);
+		stmt.setInt(2, userid);
+		stmt.setString(3, score);
+		stmt.executeUpdate();
+
+		return true;
+	}
+
+	// returns 1 if the score was deleted, 0 if there was none or -1 if the comment doesn't exist
+	private int removeCommentScore(Connection conn, int userid, int comment_id) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("WITH deleted AS (DELETE FROM comment_score"
+			+ " WHERE (userid,comment_id) = (?,?) RETURNING 1)"
+			+ " SELECT (SELECT COUNT(*) FROM deleted), EXISTS(SELECT 1 FROM comments WHERE comment_id = ?)");
+		stmt.setInt(1, userid);
+		stmt.setInt(2, comment_id);
+		stmt.setInt(3, comment_id);
+		ResultSet sql_result = stmt.executeQuery();
+		sql_result.next();
+
+		if (sql_result.getInt(1) != 0)
+			return 1;
+
+		return sql_result.getBoolean(2)? 0 : -1;
+	}
+
 	private RequestResult addPlaylist(HttpExchange ex, JSONObject data){
 		int userid = getUserID(ex);
 
@@ -1102,7 +1695,7 @@ public class RequestHandler implements HttpHandler {
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -1184,63 +1777,64 @@ public class RequestHandler implements HttpHandler {
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
-			// check videoid
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM video WHERE video_id=?");
+			// check video and playlist, then add video to playlist / delete video fram playlist.
+			// all in one statement, the write only happens if both exist
+			String write;
+
+			if (method.equals("add")){
+				write = "INSERT INTO playlist_video(video_id,list_id)"
+					+ " SELECT ?, ? FROM target WHERE video_ok AND list_ok"
+					+ " ON CONFLICT DO NOTHING RETURNING 1";
+			} else {
+				write = "DELETE FROM playlist_video WHERE (video_id,list_id)=(?,?)"
+					+ " AND (SELECT video_ok AND list_ok FROM target) RETURNING 1";
+			}
+
+			stmt = conn.prepareStatement("WITH target AS (SELECT"
+				+ " EXISTS(SELECT 1 FROM video WHERE video_id=?) AS video_ok,"
+				+ " EXISTS(SELECT 1 FROM playlist WHERE userid=? AND list_id=?) AS list_ok),"
+				+ " changed AS (" + write + ")"
+				+ " SELECT video_ok, list_ok, (SELECT COUNT(*) FROM changed) FROM target");
 			stmt.setInt(1, videoid);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			stmt.setInt(2, userid);
+			stmt.setInt(3, listid);
+			stmt.setInt(4, videoid);
+			stmt.setInt(5, listid);
+
+			try {
+				sql_result = stmt.executeQuery();
+			} catch (SQLException e){
+				// video was deleted after the check
+				if (!SqlErrors.isViolation(e, SqlErrors.FOREIGN_KEY_VIOLATION, "playlist_video_video_id_fkey"))
+					throw e;
 
-			if (sql_result.getInt(1) != 1){
 				conn.close();
 				return createFailedResult(String.format("video #%d doesn't exist", videoid));
 			}
 
-			// check playlist
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM playlist WHERE userid=? AND list_id=?");
-			stmt.setInt(1, userid);
-			stmt.setInt(2, listid);
-			sql_result = stmt.executeQuery();
 			sql_result.next();
 
-			if (sql_result.getInt(1) != 1){
+			if (!sql_result.getBoolean(1)){
 				conn.close();
-				return createFailedResult(String.format("list #%d doesn't exist", listid));
+				return createFailedResult(String.format("video #%d doesn't exist", videoid));
 			}
 
-			// check if video is in the playlist
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM playlist_video WHERE video_id=? AND list_id=?");
-			stmt.setInt(1, videoid);
-			stmt.setInt(2, listid);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			if (!sql_result.getBoolean(2)){
+				conn.close();
+				return createFailedResult(String.format("list #%d doesn't exist", listid));
+			}
 
-			boolean in_playlist = (sql_result.getInt(1) == 1);
+			if (sql_result.getInt(3) == 0){
+				conn.close();
 
-			//  add video to playlist / delete video fram playlist
-			if (method.equals("add")){
-				if (in_playlist){
-					conn.close();
+				if (method.equals("add"))
 					return createFailedResult(String.format("video #%d is already in playlist #%d", videoid, listid));
-				}
-
-				stmt = conn.prepareStatement("INSERT INTO playlist_video(video_id,list_id) VALUES(?,?)");
-				stmt.setInt(1, videoid);
-				stmt.setInt(2, listid);
-				stmt.executeUpdate();
-			} else {
-				if (!in_playlist){
-					conn.close();
+				else
 					return createFailedResult(String.format("video #%d isn't in playlist #%d", videoid, listid));
-				}
-
-				stmt = conn.prepareStatement("DELETE FROM playlist_video WHERE (video_id,list_id)=(?,?)");
-				stmt.setInt(1, videoid);
-				stmt.setInt(2, listid);
-				stmt.executeUpdate();
 			}
 
 			conn.close();
@@ -1302,7 +1896,7 @@ public class RequestHandler implements HttpHandler {
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -1358,6 +1952,8 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("internal server error");
 		}
 
+		search_cache.invalidateAll();
+
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 
@@ -1379,12 +1975,19 @@ public class RequestHandler implements HttpHandler {
 	private RequestResult displayPlaylist(HttpExchange ex, JSONObject data){
 		int userid = getUserID(ex);
 		int listid;
+		Page page;
+		Page.Cursor videos_after;
 
 		try {
 			listid = data.getInt("listid");
 
 			if (listid < 1)
 				return createFailedResult("invalid listid");
+
+			page = Page.fromRequest(data, page_size, max_page_size);
+			videos_after = page.getCursor("videos");
+		} catch (Page.InvalidCursorException e){
+			return createFailedResult("cursor is not valid", HttpURLConnection.HTTP_BAD_REQUEST);
 		} catch (JSONException e){
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
@@ -1397,7 +2000,7 @@ public class RequestHandler implements HttpHandler {
 		result.response.put("result", true);
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
@@ -1416,11 +2019,13 @@ public class RequestHandler implements HttpHandler {
 				return createFailedResult("playlist isn't public");
 			}
 
-			// get list info
-			stmt = conn.prepareStatement("SELECT name, username FROM playlist"
+			// get list info. video_count is the size of the whole list, not of the page
+			stmt = conn.prepareStatement("SELECT name, username,"
+				+ " (SELECT count(*) FROM playlist_video WHERE list_id=?) FROM playlist"
 				+ " INNER JOIN users USING(userid) WHERE list_id=?");
 
 			stmt.setInt(1, listid);
+			stmt.setInt(2, listid);
 			sql_result = stmt.executeQuery();
 			sql_result.next();
 
@@ -1428,22 +2033,33 @@ public class RequestHandler implements HttpHandler {
 			list_info.put("list_name", sql_result.getString(1));
 			list_info.put("created_by", sql_result.getString(2));
 			result.response.put("list_info", list_info);
+			int video_count = sql_result.getInt(3);
 
-			// get list videos
+			// get list videos (one page, ordered by video_id)
 			stmt = conn.prepareStatement("SELECT video_id, username, name FROM playlist_video"
 				+ " INNER JOIN video USING(video_id)"
 				+ " INNER JOIN users USING(userid)"
-				+ " WHERE list_id=?");
+				+ " WHERE list_id=? AND video_id>? ORDER BY video_id LIMIT ?");
 
 			stmt.setInt(1, listid);
+			stmt.setInt(2, (videos_after == null)? 0 : videos_after.id);
+			stmt.setInt(3, page.limit + 1);
 			sql_result = stmt.executeQuery();
 
 			ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
 			int video_number = 0;
+			int last_videoid = 0;
+			boolean has_more = false;
 
 			while(sql_result.next()){
+				if (video_number == page.limit){
+					has_more = true;
+					break;
+				}
+
 				JSONObject video = new JSONObject();
-				video.put("videoid", sql_result.getInt(1));
+				last_videoid = sql_result.getInt(1);
+				video.put("videoid", last_videoid);
 				video.put("uploader", sql_result.getString(2));
 				video.put("video_name", sql_result.getString(3));
 
@@ -1451,8 +2067,11 @@ public class RequestHandler implements HttpHandler {
 				++video_number;
 			}
 
+			page.setNext("videos", has_more, last_videoid);
+
 			result.response.put("videos", videos);
-			result.response.put("video_count", video_number);
+			result.response.put("video_count", video_count);
+			result.response.put("next", page.getNext());
 
 			conn.close();
 		} catch (SQLException e){
@@ -1476,12 +2095,25 @@ public class RequestHandler implements HttpHandler {
 	private RequestResult displayUserInfo(HttpExchange ex, JSONObject data){
 		int userid = getUserID(ex);
 		int target_uid;
+		Page page;
+		Page.Cursor videos_after;
+		Page.Cursor playlists_after;
+		Page.Cursor channels_after;
+		Page.Cursor subscribed_after;
 
 		try {
 			target_uid = data.getInt("userid");
 
 			if (target_uid < 1)
 				return createFailedResult("invalid userid");
+
+			page = Page.fromRequest(data, page_size, max_page_size);
+			videos_after = page.getTimeCursor("videos");
+			playlists_after = page.getCursor("playlists");
+			channels_after = page.getCursor("channels");
+			subscribed_after = page.getCursor("subscribed_channels");
+		} catch (Page.InvalidCursorException e){
+			return createFailedResult("cursor is not valid", HttpURLConnection.HTTP_BAD_REQUEST);
 		} catch (JSONException e){
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
@@ -1494,161 +2126,271 @@ public class RequestHandler implements HttpHandler {
 		result.response.put("result", true);
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
-			String query;
+			conn = getConnection(ex);
 
-			// check user
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM users WHERE userid=?");
-			stmt.setInt(1, target_uid);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			boolean all_info = (userid == target_uid);
 
-			if (sql_result.getInt(1) != 1){
+			// user info and the lists are independent: run them concurrently
+			QueryFanout.Batch batch = fanout.begin("displayuserinfo", getContext(ex));
+			QueryFanout.Task<JSONObject> info = batch.submit((Connection c) -> getUserInfo(c, target_uid, all_info));
+			QueryFanout.Task<ArrayList<JSONObject>> videos = batch.submit((Connection c) -> getUserVideos(c, target_uid, page, videos_after));
+			QueryFanout.Task<ArrayList<JSONObject>> playlists = batch.submit((Connection c) -> getUserPlaylists(c, target_uid, all_info, page, playlists_after));
+			QueryFanout.Task<ArrayList<JSONObject>> channels = batch.submit((Connection c) -> getUserChannels(c, target_uid, page, channels_after));
+			QueryFanout.Task<ArrayList<JSONObject>> subchannels = null;
+
+			if (all_info)
+				subchannels = batch.submit((Connection c) -> getUserSubscriptions(c, target_uid, page, subscribed_after));
+
+			batch.await();
+
+			if (info.get() == null){
 				conn.close();
 				return createFailedResult(String.format("user #%d doesn't exist", target_uid));
 			}
 
-			boolean all_info = (userid == target_uid);
+			for (String key : info.get().keySet())
+				result.response.put(key, info.get().get(key));
 
-			// get user info
-			stmt = conn.prepareStatement("SELECT username, reg_date, has_avatar FROM users WHERE userid=?");
+			result.response.put("videos", videos.get());
+			result.response.put("playlists", playlists.get());
+			result.response.put("channels", channels.get());
 
-			stmt.setInt(1, target_uid);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			if (all_info)
+				result.response.put("subscribed_channels", subchannels.get());
 
-			result.response.put("username", sql_result.getString(1));
-			result.response.put("register_date", sql_result.getString(2));
+			result.response.put("next", page.getNext());
 
-			if (sql_result.getBoolean(3))
-				result.response.put("avatar", String.format("%s_%d.jpg", sql_result.getString(1), target_uid));
-			else
-				result.response.put("avatar", JSONObject.NULL);
+			conn.close();
+		} catch (SQLException e){
+			sql_error = true;
+		}
 
-			// get videos
-			stmt = conn.prepareStatement("SELECT video_id, name, upload_date FROM video"
-				+" INNER JOIN users USING(userid) WHERE userid=? ORDER BY upload_date DESC");
-			stmt.setInt(1, target_uid);
-			sql_result = stmt.executeQuery();
+		if (sql_error){
+			if (conn != null){
+				try {
+					conn.close();
+				} catch (SQLException e){
+					// do nothing
+				}
+			}
+			return createFailedResult("internal server error");
+		}
 
-			ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
-			int video_number = 0;
+		return result;
+	}
 
-			while(sql_result.next()){
-				JSONObject video = new JSONObject();
-				video.put("videoid", sql_result.getInt(1));
-				video.put("video_name", sql_result.getString(2));
-				video.put("upload_time", sql_result.getString(3));
+	// returns null if user doesn't exist
+	// counts are totals of the lists, not of the page. private lists are only counted for their owner
+	private JSONObject getUserInfo(Connection conn, int target_uid, boolean all_info) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT username, reg_date, has_avatar,"
+			+ " (SELECT count(*) FROM video WHERE userid=u.userid),"
+			+ " (SELECT count(*) FROM playlist WHERE userid=u.userid AND (is_public OR ?)),"
+			+ " (SELECT count(*) FROM channel WHERE userid=u.userid)"
+			+ " FROM users u WHERE userid=?");
 
-				videos.add(video);
-				++video_number;
-			}
+		stmt.setBoolean(1, all_info);
+		stmt.setInt(2, target_uid);
+		ResultSet sql_result = stmt.executeQuery();
 
-			result.response.put("videos", videos);
-			result.response.put("video_count", video_number);
+		if (!sql_result.next())
+			return null;
 
-			// get playlists
-			if (all_info){
-				stmt = conn.prepareStatement("SELECT list_id, name, is_public FROM playlist WHERE userid=?");
-			} else {
-				stmt = conn.prepareStatement("SELECT list_id, name, is_public FROM playlist WHERE userid=? AND is_public=?");
-				stmt.setBoolean(2, true);
-			}
+		JSONObject info = new JSONObject();
+		info.put("username", sql_result.getString(1));
+		info.put("register_date", sql_result.getString(2));
+
+		if (sql_result.getBoolean(3))
+			info.put("avatar", String.format("%s_%d.jpg", sql_result.getString(1), target_uid));
+		else
+			info.put("avatar", JSONObject.NULL);
+
+		info.put("video_count", sql_result.getInt(4));
+		info.put("playlist_count", sql_result.getInt(5));
+		info.put("channel_count", sql_result.getInt(6));
+
+		return info;
+	}
+
+	// one page, newest first
+	private ArrayList<JSONObject> getUserVideos(Connection conn, int target_uid, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt;
 
+		if (after == null){
+			stmt = conn.prepareStatement("SELECT video_id, name, upload_date FROM video"
+				+ " WHERE userid=? ORDER BY upload_date DESC, video_id DESC LIMIT ?");
 			stmt.setInt(1, target_uid);
-			sql_result = stmt.executeQuery();
+			stmt.setInt(2, page.limit + 1);
+		} else {
+			stmt = conn.prepareStatement("SELECT video_id, name, upload_date FROM video"
+				+ " WHERE userid=? AND (upload_date, video_id) < (?, ?)"
+				+ " ORDER BY upload_date DESC, video_id DESC LIMIT ?");
+			stmt.setInt(1, target_uid);
+			stmt.setTimestamp(2, after.time);
+			stmt.setInt(3, after.id);
+			stmt.setInt(4, page.limit + 1);
+		}
 
-			ArrayList<JSONObject> playlists = new ArrayList<JSONObject>();
-			int list_number = 0;
+		ResultSet sql_result = stmt.executeQuery();
 
-			while(sql_result.next()){
-				JSONObject playlist = new JSONObject();
-				playlist.put("playlist_id", sql_result.getInt(1));
-				playlist.put("list_name", sql_result.getString(2));
-				playlist.put("is_public", sql_result.getBoolean(3));
+		ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
+		int last_videoid = 0;
+		Timestamp last_upload = null;
+		boolean has_more = false;
 
-				playlists.add(playlist);
-				++list_number;
+		while(sql_result.next()){
+			if (videos.size() == page.limit){
+				has_more = true;
+				break;
 			}
 
-			result.response.put("playlists", playlists);
-			result.response.put("playlist_count", list_number);
+			JSONObject video = new JSONObject();
+			last_videoid = sql_result.getInt(1);
+			last_upload = sql_result.getTimestamp(3);
+			video.put("videoid", last_videoid);
+			video.put("video_name", sql_result.getString(2));
+			video.put("upload_time", sql_result.getString(3));
 
-			// get channels
-			stmt = conn.prepareStatement("SELECT channel_id, name FROM channel WHERE userid=?");
-			stmt.setInt(1, target_uid);
-			sql_result = stmt.executeQuery();
+			videos.add(video);
+		}
 
-			ArrayList<JSONObject> channels = new ArrayList<JSONObject>();
-			int channel_number = 0;
+		page.setNext("videos", has_more, last_upload, last_videoid);
+		return videos;
+	}
 
-			while(sql_result.next()){
-				JSONObject channel = new JSONObject();
-				channel.put("channel_id", sql_result.getInt(1));
-				channel.put("channel_name", sql_result.getString(2));
+	// one page, ordered by list_id. private lists are only shown to their owner
+	private ArrayList<JSONObject> getUserPlaylists(Connection conn, int target_uid, boolean all_info, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt;
 
-				channels.add(channel);
-				++channel_number;
-			}
+		if (all_info){
+			stmt = conn.prepareStatement("SELECT list_id, name, is_public FROM playlist"
+				+ " WHERE userid=? AND list_id>? ORDER BY list_id LIMIT ?");
+		} else {
+			stmt = conn.prepareStatement("SELECT list_id, name, is_public FROM playlist"
+				+ " WHERE userid=? AND list_id>? AND is_public=? ORDER BY list_id LIMIT ?");
+		}
 
-			result.response.put("channels", channels);
-			result.response.put("channel_count", channel_number);
+		stmt.setInt(1, target_uid);
+		stmt.setInt(2, (after == null)? 0 : after.id);
 
-			// get subscribed channels
-			if (all_info){
-				stmt = conn.prepareStatement("SELECT channel.channel_id, name FROM channel"
-					+ " INNER JOIN channel_subscription USING(userid)"
-					+ " WHERE userid=?");
+		if (all_info){
+			stmt.setInt(3, page.limit + 1);
+		} else {
+			stmt.setBoolean(3, true);
+			stmt.setInt(4, page.limit + 1);
+		}
 
-				stmt.setInt(1, target_uid);
-				sql_result = stmt.executeQuery();
+		ResultSet sql_result = stmt.executeQuery();
+
+		ArrayList<JSONObject> playlists = new ArrayList<JSONObject>();
+		int last_listid = 0;
+		boolean has_more = false;
 
-				ArrayList<JSONObject> subchannels = new ArrayList<JSONObject>();
+		while(sql_result.next()){
+			if (playlists.size() == page.limit){
+				has_more = true;
+				break;
+			}
 
-				while(sql_result.next()){
-					JSONObject subchannel = new JSONObject();
-					subchannel.put("channel_id", sql_result.getInt(1));
-					subchannel.put("channel_name", sql_result.getString(2));
+			JSONObject playlist = new JSONObject();
+			last_listid = sql_result.getInt(1);
+			playlist.put("playlist_id", last_listid);
+			playlist.put("list_name", sql_result.getString(2));
+			playlist.put("is_public", sql_result.getBoolean(3));
 
-					subchannels.add(subchannel);
-				}
+			playlists.add(playlist);
+		}
+
+		page.setNext("playlists", has_more, last_listid);
+		return playlists;
+	}
 
-				result.response.put("subscribed_channels", subchannels);
+	// one page, ordered by channel_id
+	private ArrayList<JSONObject> getUserChannels(Connection conn, int target_uid, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT channel_id, name FROM channel"
+			+ " WHERE userid=? AND channel_id>? ORDER BY channel_id LIMIT ?");
+		stmt.setInt(1, target_uid);
+		stmt.setInt(2, (after == null)? 0 : after.id);
+		stmt.setInt(3, page.limit + 1);
+		ResultSet sql_result = stmt.executeQuery();
+
+		ArrayList<JSONObject> channels = new ArrayList<JSONObject>();
+		int last_channelid = 0;
+		boolean has_more = false;
+
+		while(sql_result.next()){
+			if (channels.size() == page.limit){
+				has_more = true;
+				break;
 			}
 
-			conn.close();
-		} catch (SQLException e){
-			sql_error = true;
+			JSONObject channel = new JSONObject();
+			last_channelid = sql_result.getInt(1);
+			channel.put("channel_id", last_channelid);
+			channel.put("channel_name", sql_result.getString(2));
+
+			channels.add(channel);
 		}
 
-		if (sql_error){
-			if (conn != null){
-				try {
-					conn.close();
-				} catch (SQLException e){
-					// do nothing
-				}
+		page.setNext("channels", has_more, last_channelid);
+		return channels;
+	}
+
+	// one page, ordered by channel_id
+	private ArrayList<JSONObject> getUserSubscriptions(Connection conn, int target_uid, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT channel_id, name FROM channel_subscription"
+			+ " INNER JOIN channel USING(channel_id)"
+			+ " WHERE channel_subscription.userid=? AND channel_id>?"
+			+ " ORDER BY channel_id LIMIT ?");
+
+		stmt.setInt(1, target_uid);
+		stmt.setInt(2, (after == null)? 0 : after.id);
+		stmt.setInt(3, page.limit + 1);
+		ResultSet sql_result = stmt.executeQuery();
+
+		ArrayList<JSONObject> subchannels = new ArrayList<JSONObject>();
+		int last_subchannelid = 0;
+		boolean has_more = false;
+
+		while(sql_result.next()){
+			if (subchannels.size() == page.limit){
+				has_more = true;
+				break;
 			}
-			return createFailedResult("internal server error");
+
+			JSONObject subchannel = new JSONObject();
+			last_subchannelid = sql_result.getInt(1);
+			subchannel.put("channel_id", last_subchannelid);
+			subchannel.put("channel_name", sql_result.getString(2));
+
+			subchannels.add(subchannel);
 		}
 
-		return result;
+		page.setNext("subscribed_channels", has_more, last_subchannelid);
+		return subchannels;
 	}
 
 	private RequestResult getVideo(HttpExchange ex, JSONObject data){
 		int videoid;
+		Page page;
+		Page.Cursor comments_after;
 
 		try {
 			videoid = data.getInt("videoid");
 
 			if (videoid < 1)
 				return createFailedResult("invalid videoid");
+
+			page = Page.fromRequest(data, page_size, max_page_size);
+			comments_after = page.getTimeCursor("comments");
+		} catch (Page.InvalidCursorException e){
+			return createFailedResult("cursor is not valid", HttpURLConnection.HTTP_BAD_REQUEST);
 		} catch (JSONException e){
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
 
+		if (!video_ids.mightExist(videoid))
+			return createFailedResult(String.format("video #%d doesn't exist", videoid));
+
 		Connection conn = null;
 		boolean sql_error = false;
 
@@ -1657,91 +2399,103 @@ public class RequestHandler implements HttpHandler {
 		result.response.put("result", true);
 
 		try {
-			conn = dbhandler.getConnection();
+			conn = getConnection(ex);
 			PreparedStatement stmt;
 			ResultSet sql_result;
 
-			// get video information
-			stmt = conn.prepareStatement("SELECT name, filename, userid, username,"
-				+ " description, duration, upload_date, total_watch FROM video"
-				+ " INNER JOIN users USING (userid)"
-				+ " WHERE video_id = ?");
+			VideoInfo info = video_cache.get(videoid);
+
+			if (info == null){
+				// get video information with like/dislike totals
+				stmt = conn.prepareStatement("SELECT total_watch, likes, dislikes,"
+					+ " name, filename, userid, username, description, duration, upload_date FROM video"
+					+ " INNER JOIN users USING (userid)"
+					+ " WHERE video_id = ?");
+			} else {
+				// only the counters, the rest is cached
+				stmt = conn.prepareStatement("SELECT total_watch, likes, dislikes FROM video WHERE video_id = ?");
+			}
+
 			stmt.setInt(1, videoid);
 			sql_result = stmt.executeQuery();
 
 			if (!sql_result.next()){
 				conn.close();
+				video_cache.remove(videoid);
 				return createFailedResult(String.format("video #%d doesn't exist", videoid));
 			}
 
-			result.response.put("videoname", sql_result.getString(1));
-			result.response.put("filename", sql_result.getString(2));
-			result.response.put("uploader_id", sql_result.getInt(3));
-			result.response.put("uploader_username", sql_result.getString(4));
-			result.response.put("description", sql_result.getString(5));
-			result.response.put("video_duration", sql_result.getInt(6));
-			result.response.put("upload_date", sql_result.getString(7));
-			result.response.put("total_views", sql_result.getInt(8) + 1);
+			if (info == null){
+				info = new VideoInfo(sql_result.getString(4), sql_result.getString(5), sql_result.getInt(6),
+					sql_result.getString(7), sql_result.getString(8), sql_result.getInt(9), sql_result.getString(10));
+				video_cache.put(videoid, info);
+			}
 
-			// get likes/dislikes
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM video_score WHERE video_id=? AND score=?::SCORE_T");
-			stmt.setInt(1, videoid);
-			stmt.setString(2, "like");
-			sql_result = stmt.executeQuery();
-			sql_result.next();
-			result.response.put("likes", sql_result.getInt(1));
+			// add to watch number (written to database by view_counter)
+			view_counter.add(videoid);
+
+			result.response.put("videoname", info.name);
+			result.response.put("filename", info.filename);
+			result.response.put("uploader_id", info.uploader_id);
+			result.response.put("uploader_username", info.uploader_username);
+			result.response.put("description", info.description);
+			result.response.put("video_duration", info.duration);
+			result.response.put("upload_date", info.upload_date);
+			result.response.put("total_views", sql_result.getInt(1) + view_counter.getPending(videoid));
+			result.response.put("likes", sql_result.getInt(2) + video_scores.getPendingLikes(videoid));
+			result.response.put("dislikes", sql_result.getInt(3) + video_scores.getPendingDislikes(videoid));
+
+			// get one page of comments (newest first) with like/dislike totals
+			String page_filter = (comments_after == null)? "" : " AND (submit_date, comment_id) < (?, ?)";
+
+			stmt = conn.prepareStatement("SELECT comment_id, parent_id, username, comment, submit_date,"
+				+ " likes, dislikes FROM comments"
+				+ " INNER JOIN users USING(userid)"
+				+ " WHERE video_id=?" + page_filter
+				+ " ORDER BY submit_date DESC, comment_id DESC LIMIT ?");
 
-			stmt.setString(2, "dislike");
-			sql_result = stmt.executeQuery();
-			sql_result.next();
-			result.response.put("dislikes", sql_result.getInt(1));
+			int param = 1;
+			stmt.setInt(param++, videoid);
 
-			// get comments
-			stmt = conn.prepareStatement("SELECT comment_id, parent_id, username, comment, submit_date FROM comments"
-				+ " INNER JOIN users USING(userid) WHERE video_id=? ORDER BY submit_date DESC");
-			stmt.setInt(1, videoid);
+			if (comments_after != null){
+				stmt.setTimestamp(param++, comments_after.time);
+				stmt.setInt(param++, comments_after.id);
+			}
+
+			stmt.setInt(param++, page.limit + 1);
 			sql_result = stmt.executeQuery();
 
 			ArrayList<JSONObject> comments = new ArrayList<JSONObject>();
-
-			PreparedStatement local_stmt;
-
-			local_stmt = conn.prepareStatement("SELECT COUNT(*) FROM comment_score"
-				+ " WHERE comment_id=? AND score=?::SCORE_T");
+			int comment_number = 0;
+			int last_commentid = 0;
+			Timestamp last_submit = null;
+			boolean has_more = false;
 
 			while(sql_result.next()){
-				int comment_id = sql_result.getInt(1);
+				if (comment_number == page.limit){
+					has_more = true;
+					break;
+				}
+
 				JSONObject comment = new JSONObject();
+				last_commentid = sql_result.getInt(1);
+				last_submit = sql_result.getTimestamp(5);
 
-				comment.put("comment_id", comment_id);
+				comment.put("comment_id", last_commentid);
 				comment.put("reply_to", sql_result.getInt(2));
 				comment.put("sender", sql_result.getString(3));
 				comment.put("comment", sql_result.getString(4));
 				comment.put("date", sql_result.getString(5));
-
-				ResultSet lsql_result;
-
-				local_stmt.setInt(1, comment_id);
-
-				local_stmt.setString(2, "like");
-				lsql_result = local_stmt.executeQuery();
-				lsql_result.next();
-				comment.put("likes", lsql_result.getInt(1));
-
-				local_stmt.setString(2, "dislike");
-				lsql_result = local_stmt.executeQuery();
-				lsql_result.next();
-				comment.put("dislikes", lsql_result.getInt(1));
+				comment.put("likes", sql_result.getInt(6) + comment_scores.getPendingLikes(last_commentid));
+				comment.put("dislikes", sql_result.getInt(7) + comment_scores.getPendingDislikes(last_commentid));
 
 				comments.add(comment);
+				++comment_number;
 			}
 
+			page.setNext("comments", has_more, last_submit, last_commentid);
 			result.response.put("comments", comments);
-
-			// add to watch number
-			stmt = conn.prepareStatement("UPDATE video SET total_watch = total_watch+1 WHERE video_id=?");
-			stmt.setInt(1, videoid);
-			stmt.executeUpdate();
+			result.response.put("next", page.getNext());
 
 			conn.close();
 		} catch (SQLException e){
@@ -1764,16 +2518,28 @@ public class RequestHandler implements HttpHandler {
 
 	private RequestResult displayChannel(HttpExchange ex, JSONObject data){
 		int channel_id;
+		Page page;
+		Page.Cursor videos_after;
+		Page.Cursor subscribers_after;
 
 		try {
 			channel_id = data.getInt("channel_id");
 
 			if (channel_id  < 1)
 				return createFailedResult("invalid channel_id");
+
+			page = Page.fromRequest(data, page_size, max_page_size);
+			videos_after = page.getCursor("videos");
+			subscribers_after = page.getCursor("subscribers");
+		} catch (Page.InvalidCursorException e){
+			return createFailedResult("cursor is not valid", HttpURLConnection.HTTP_BAD_REQUEST);
 		} catch (JSONException e){
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
 
+		if (!channel_ids.mightExist(channel_id))
+			return createFailedResult(String.format("channel #%d doesn't exist", channel_id));
+
 		Connection conn = null;
 		boolean sql_error = false;
 
@@ -1782,74 +2548,26 @@ public class RequestHandler implements HttpHandler {
 		result.response.put("result", true);
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			conn = getConnection(ex);
 
-			// get channel info
-			stmt = conn.prepareStatement("SELECT name, username, description, creation_date, userid FROM channel"
-				+ " INNER JOIN users USING(userid) WHERE channel_id=?");
+			// channel info, videos and subscribers are independent: run them concurrently
+			QueryFanout.Batch batch = fanout.begin("displaychannel", getContext(ex));
+			QueryFanout.Task<JSONObject> info = batch.submit((Connection c) -> getChannelInfo(c, channel_id));
+			QueryFanout.Task<ArrayList<JSONObject>> videos = batch.submit((Connection c) -> getChannelVideos(c, channel_id, page, videos_after));
+			QueryFanout.Task<ArrayList<JSONObject>> subs = batch.submit((Connection c) -> getChannelSubscribers(c, channel_id, page, subscribers_after));
+			batch.await();
 
-			stmt.setInt(1, channel_id);
-			sql_result = stmt.executeQuery();
-
-			if (!sql_result.next()){
+			if (info.get() == null){
 				conn.close();
 				return createFailedResult(String.format("channel #%d doesn't exist", channel_id));
 			}
 
-			result.response.put("name", sql_result.getString(1));
-			result.response.put("owner", sql_result.getString(2));
-			result.response.put("description", sql_result.getString(3));
-			result.response.put("creation_date", sql_result.getString(4));
-			result.response.put("channel_picture", String.format("%d_%d.jpg", sql_result.getInt(5), channel_id));
-
-			// get videos
-			stmt = conn.prepareStatement("SELECT video_id, name FROM channel_video"
-				+ " INNER JOIN video USING(video_id)"
-				+ " INNER JOIN users USING(userid)"
-				+ " WHERE channel_id=? ORDER BY upload_date DESC");
-
-			stmt.setInt(1, channel_id);
-			sql_result = stmt.executeQuery();
-
-			int total_videos = 0;
-			ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
-
-			while(sql_result.next()){
-				JSONObject video = new JSONObject();
-				video.put("video_id", sql_result.getInt(1));
-				video.put("video_name", sql_result.getString(2));
-
-				videos.add(video);
-				++total_videos;
-			}
-
-			result.response.put("videos", videos);
-			result.response.put("video_count", total_videos);
-
-			// get subscribers
-			stmt = conn.prepareStatement("SELECT userid, username FROM channel_subscription"
-				+ " INNER JOIN users USING(userid)"
-				+ " WHERE channel_id = ?");
-
-			stmt.setInt(1, channel_id);
-			sql_result = stmt.executeQuery();
-
-			int total_subs = 0;
-			ArrayList<JSONObject> subs = new ArrayList<JSONObject>();
-
-			while(sql_result.next()){
-				JSONObject sub = new JSONObject();
-				sub.put("userid", sql_result.getInt(1));
-				sub.put("username", sql_result.getString(2));
-
-				subs.add(sub);
-				++total_subs;
-			}
+			for (String key : info.get().keySet())
+				result.response.put(key, info.get().get(key));
 
-			result.response.put("subscribers", subs);
-			result.response.put("subscribers_count", total_subs);
+			result.response.put("videos", videos.get());
+			result.response.put("subscribers", subs.get());
+			result.response.put("next", page.getNext());
 
 			conn.close();
 		} catch (SQLException e){
@@ -1871,6 +2589,98 @@ public class RequestHandler implements HttpHandler {
 		return result;
 	}
 
+	// returns null if channel doesn't exist
+	private JSONObject getChannelInfo(Connection conn, int channel_id) throws SQLException {
+		// counts are totals, not the size of the page
+		PreparedStatement stmt = conn.prepareStatement("SELECT name, username, description, creation_date, userid,"
+			+ " (SELECT count(*) FROM channel_video WHERE channel_id=c.channel_id),"
+			+ " (SELECT count(*) FROM channel_subscription WHERE channel_id=c.channel_id)"
+			+ " FROM channel c INNER JOIN users USING(userid) WHERE channel_id=?");
+
+		stmt.setInt(1, channel_id);
+		ResultSet sql_result = stmt.executeQuery();
+
+		if (!sql_result.next())
+			return null;
+
+		JSONObject info = new JSONObject();
+		info.put("name", sql_result.getString(1));
+		info.put("owner", sql_result.getString(2));
+		info.put("description", sql_result.getString(3));
+		info.put("creation_date", sql_result.getString(4));
+		info.put("channel_picture", String.format("%d_%d.jpg", sql_result.getInt(5), channel_id));
+		info.put("video_count", sql_result.getInt(6));
+		info.put("subscribers_count", sql_result.getInt(7));
+
+		return info;
+	}
+
+	// one page, newest first. video ids grow with upload time
+	private ArrayList<JSONObject> getChannelVideos(Connection conn, int channel_id, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT video_id, name FROM channel_video"
+			+ " INNER JOIN video USING(video_id)"
+			+ " WHERE channel_id=? AND video_id<? ORDER BY video_id DESC LIMIT ?");
+
+		stmt.setInt(1, channel_id);
+		stmt.setInt(2, (after == null)? Integer.MAX_VALUE : after.id);
+		stmt.setInt(3, page.limit + 1);
+		ResultSet sql_result = stmt.executeQuery();
+
+		int last_videoid = 0;
+		boolean has_more = false;
+		ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
+
+		while(sql_result.next()){
+			if (videos.size() == page.limit){
+				has_more = true;
+				break;
+			}
+
+			JSONObject video = new JSONObject();
+			last_videoid = sql_result.getInt(1);
+			video.put("video_id", last_videoid);
+			video.put("video_name", sql_result.getString(2));
+
+			videos.add(video);
+		}
+
+		page.setNext("videos", has_more, last_videoid);
+		return videos;
+	}
+
+	// one page, ordered by userid
+	private ArrayList<JSONObject> getChannelSubscribers(Connection conn, int channel_id, Page page, Page.Cursor after) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT userid, username FROM channel_subscription"
+			+ " INNER JOIN users USING(userid)"
+			+ " WHERE channel_id = ? AND userid > ? ORDER BY userid LIMIT ?");
+
+		stmt.setInt(1, channel_id);
+		stmt.setInt(2, (after == null)? 0 : after.id);
+		stmt.setInt(3, page.limit + 1);
+		ResultSet sql_result = stmt.executeQuery();
+
+		int last_userid = 0;
+		boolean has_more = false;
+		ArrayList<JSONObject> subs = new ArrayList<JSONObject>();
+
+		while(sql_result.next()){
+			if (subs.size() == page.limit){
+				has_more = true;
+				break;
+			}
+
+			JSONObject sub = new JSONObject();
+			last_userid = sql_result.getInt(1);
+			sub.put("userid", last_userid);
+			sub.put("username", sql_result.getString(2));
+
+			subs.add(sub);
+		}
+
+		page.setNext("subscribers", has_more, last_userid);
+		return subs;
+	}
+
 	private RequestResult search(HttpExchange ex, JSONObject data){
 		String keywords;
 
@@ -1883,112 +2693,125 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
 
-		keywords = keywords.replaceAll(" ", " | ");
+		// any word matches, so order, case and repeated words don't change the result
+		TreeSet<String> words = new TreeSet<String>();
 
+		for (String word : keywords.toLowerCase().split("\\s+"))
+			words.add(word);
 
-		Connection conn = null;
-		boolean sql_error = false;
+		String query = String.join(" | ", words);
 
 		RequestResult result = new RequestResult();
 		result.response = new JSONObject();
 		result.response.put("result", true);
 
+		SearchResult matches;
+
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			matches = search_cache.get(query, () -> runSearch(ex, query));
+		} catch (SQLException e){
+			// a shared load fails with the error of whichever request ran it, so map it by kind
+			if (SqlErrors.SYNTAX_ERROR.equals(e.getSQLState()))
+				return createFailedResult("keywords format is not valid");
 
-			// search videos
-			stmt = conn.prepareStatement("SELECT video_id, name, username"
-			+ " FROM video INNER JOIN users USING(userid)"
-			+ " WHERE name @@ to_tsquery(?) LIMIT 10");
+			if (SqlErrors.isUnavailable(e))
+				return createFailedResult("server is busy", HttpURLConnection.HTTP_UNAVAILABLE);
 
-			stmt.setString(1, keywords);
-			sql_result = stmt.executeQuery();
+			return createFailedResult("internal server error");
+		}
 
-			int total_videos = 0;
-			ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
+		result.response.put("videos", matches.videos);
+		result.response.put("video_count", matches.videos.size());
+		result.response.put("channels", matches.channels);
+		result.response.put("channel_count", matches.channels.size());
+		result.response.put("playlists", matches.playlists);
+		result.response.put("playlist_count", matches.playlists.size());
 
-			while (sql_result.next()){
-				JSONObject video = new JSONObject();
-				video.put("video_id", sql_result.getInt(1));
-				video.put("video_name", sql_result.getString(2));
-				video.put("uploader", sql_result.getString(3));
+		return result;
+	}
 
-				videos.add(video);
-				++total_videos;
-			}
+	private SearchResult runSearch(HttpExchange ex, String query) throws SQLException {
+		// the three searches are independent: run them concurrently
+		QueryFanout.Batch batch = fanout.begin("search", getContext(ex));
+		QueryFanout.Task<ArrayList<JSONObject>> videos = batch.submit((Connection c) -> searchVideos(c, query));
+		QueryFanout.Task<ArrayList<JSONObject>> channels = batch.submit((Connection c) -> searchChannels(c, query));
+		QueryFanout.Task<ArrayList<JSONObject>> plists = batch.submit((Connection c) -> searchPlaylists(c, query));
+		batch.await();
 
-			result.response.put("videos", videos);
-			result.response.put("video_count", total_videos);
+		return new SearchResult(videos.get(), channels.get(), plists.get());
+	}
 
-			// search channels
-			stmt = conn.prepareStatement("SELECT channel_id, name, description, username FROM channel"
-				+ " INNER JOIN users USING(userid)"
-				+ " WHERE name @@ to_tsquery(?) LIMIT 10");
+	// name and description, best matches first
+	private ArrayList<JSONObject> searchVideos(Connection conn, String query) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT video_id, name, username"
+			+ " FROM video INNER JOIN users USING(userid), to_tsquery('english', ?) AS query"
+			+ " WHERE search_vector @@ query"
+			+ " ORDER BY ts_rank(search_vector, query) DESC LIMIT 10");
 
-			stmt.setString(1, keywords);
-			sql_result = stmt.executeQuery();
+		stmt.setString(1, query);
+		ResultSet sql_result = stmt.executeQuery();
 
-			int total_channels = 0;
-			ArrayList<JSONObject> channels = new ArrayList<JSONObject>();
+		ArrayList<JSONObject> videos = new ArrayList<JSONObject>();
 
-			while (sql_result.next()){
-				JSONObject channel = new JSONObject();
-				channel.put("channel_id", sql_result.getInt(1));
-				channel.put("channel_name", sql_result.getString(2));
-				channel.put("description", sql_result.getString(3));
-				channel.put("owner", sql_result.getString(4));
+		while (sql_result.next()){
+			JSONObject video = new JSONObject();
+			video.put("video_id", sql_result.getInt(1));
+			video.put("video_name", sql_result.getString(2));
+			video.put("uploader", sql_result.getString(3));
 
-				channels.add(channel);
-				++total_channels;
-			}
+			videos.add(video);
+		}
 
-			result.response.put("channels", channels);
-			result.response.put("channel_count", total_channels);
+		return videos;
+	}
 
-			// public playlists
-			stmt = conn.prepareStatement("SELECT list_id, name, username FROM playlist"
-				+ " INNER JOIN users USING(userid)"
-				+ " WHERE is_public=? AND name @@ to_tsquery(?) LIMIT 10");
+	// name and description, best matches first
+	private ArrayList<JSONObject> searchChannels(Connection conn, String query) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT channel_id, name, description, username FROM channel"
+			+ " INNER JOIN users USING(userid), to_tsquery('english', ?) AS query"
+			+ " WHERE search_vector @@ query"
+			+ " ORDER BY ts_rank(search_vector, query) DESC LIMIT 10");
 
-			stmt.setBoolean(1, true);
-			stmt.setString(2, keywords);
-			sql_result = stmt.executeQuery();
+		stmt.setString(1, query);
+		ResultSet sql_result = stmt.executeQuery();
 
-			int total_lists = 0;
-			ArrayList<JSONObject> plists = new ArrayList<JSONObject>();
+		ArrayList<JSONObject> channels = new ArrayList<JSONObject>();
 
-			while (sql_result.next()){
-				JSONObject plist = new JSONObject();
-				plist.put("list_id", sql_result.getInt(1));
-				plist.put("playlist_name", sql_result.getString(2));
-				plist.put("owner", sql_result.getString(3));
+		while (sql_result.next()){
+			JSONObject channel = new JSONObject();
+			channel.put("channel_id", sql_result.getInt(1));
+			channel.put("channel_name", sql_result.getString(2));
+			channel.put("description", sql_result.getString(3));
+			channel.put("owner", sql_result.getString(4));
 
-				plists.add(plist);
-				++total_lists;
-			}
+			channels.add(channel);
+		}
 
-			result.response.put("playlists", plists);
-			result.response.put("playlist_count", total_lists);
+		return channels;
+	}
 
-			conn.close();
-		} catch (SQLException e){
-			sql_error = true;
-		}
+	// public playlists, best matches first
+	private ArrayList<JSONObject> searchPlaylists(Connection conn, String query) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT list_id, name, username FROM playlist"
+			+ " INNER JOIN users USING(userid), to_tsquery('english', ?) AS query"
+			+ " WHERE is_public AND search_vector @@ query"
+			+ " ORDER BY ts_rank(search_vector, query) DESC LIMIT 10");
 
-		if (sql_error){
-			if (conn != null){
-				try {
-					conn.close();
-				} catch (SQLException e){
-					// do nothing
-				}
-			}
-			return createFailedResult("keywords format is not valid");
+		stmt.setString(1, query);
+		ResultSet sql_result = stmt.executeQuery();
+
+		ArrayList<JSONObject> plists = new ArrayList<JSONObject>();
+
+		while (sql_result.next()){
+			JSONObject plist = new JSONObject();
+			plist.put("list_id", sql_result.getInt(1));
+			plist.put("playlist_name", sql_result.getString(2));
+			plist.put("owner", sql_result.getString(3));
+
+			plists.add(plist);
 		}
 
-		return result;
+		return plists;
 	}
 
 	private RequestResult subscribeChannel(HttpExchange ex, JSONObject data){
@@ -2011,53 +2834,39 @@ public class RequestHandler implements HttpHandler {
 			return createFailedResult("missing/invalid parameters", HttpURLConnection.HTTP_BAD_REQUEST);
 		}
 
+		if (!channel_ids.mightExist(channel_id))
+			return createFailedResult("channel not found");
+
 		Connection conn = null;
 		boolean sql_error = false;
 
 		try {
-			conn = dbhandler.getConnection();
-			PreparedStatement stmt;
-			ResultSet sql_result;
+			conn = getConnection(ex);
+			int changed;
 
-			// check channel
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM channel WHERE channel_id = ?");
-			stmt.setInt(1, channel_id);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
+			try {
+				changed = writes.run(conn, (Connection c) -> changeSubscription(c, userid, channel_id, subscribe));
+			} catch (SQLException e){
+				if (!SqlErrors.isViolation(e, SqlErrors.FOREIGN_KEY_VIOLATION, "channel_subscription_channel_id_fkey"))
+					throw e;
 
-			if (sql_result.getInt(1) == 0){
-				conn.close();
-				return createFailedResult("channel not found");
+				changed = -1;
 			}
 
-			// check if user is subscribed
-			stmt = conn.prepareStatement("SELECT COUNT(*) FROM channel_subscription WHERE (userid,channel_id) = (?,?)");
-			stmt.setInt(1, userid);
-			stmt.setInt(2, channel_id);
-			sql_result = stmt.executeQuery();
-			sql_result.next();
-
-			boolean is_subscribed = (sql_result.getInt(1) == 1);
-
-			if (subscribe && is_subscribed){
+			if (changed < 0){
 				conn.close();
-				return createFailedResult("you are already subscribed to this channel");
+				return createFailedResult("channel not found");
 			}
 
-			if (!subscribe && !is_subscribed){
+			if (changed == 0){
 				conn.close();
-				return createFailedResult("you're not subscribed to this channel");
-			}
 
-			if (subscribe)
-				stmt = conn.prepareStatement("INSERT INTO channel_subscription(userid, channel_id) VALUES(?,?)");
-			else
-				stmt = conn.prepareStatement("DELETE FROM channel_subscription WHERE (userid, channel_id) = (?,?)");
-
-			stmt.setInt(1, userid);
-			stmt.setInt(2, channel_id);
+				if (subscribe)
+					return createFailedResult("you are already subscribed to this channel");
+				else
+					return createFailedResult("you're not subscribed to this channel");
+			}
 
-			stmt.executeUpdate();
 			conn.close();
 		} catch (SQLException e){
 			sql_error = true;
@@ -2087,4 +2896,34 @@ public class RequestHandler implements HttpHandler {
 
 		return result;
 	}
+
+	// returns 1 if the subscription was changed, 0 if it already was that way or -1 if the
+	// channel doesn't exist. subscribing to a missing channel fails the foreign key instead
+	private int changeSubscription(Connection conn, int userid, int channel_id, boolean subscribe) throws SQLException {
+		PreparedStatement stmt;
+
+		if (subscribe){
+			stmt = conn.prepareStatement("INSERT INTO channel_subscription(userid, channel_id) VALUES(?,?)"
+				+ " ON CONFLICT DO NOTHING");
+			stmt.setInt(1, userid);
+			stmt.setInt(2, channel_id);
+
+			return stmt.executeUpdate();
+		}
+
+		// the channel is checked in the same query, for the error message
+		stmt = conn.prepareStatement("WITH deleted AS (DELETE FROM channel_subscription"
+			+ " WHERE (userid, channel_id) = (?,?) RETURNING 1)"
+			+ " SELECT (SELECT COUNT(*) FROM deleted), EXISTS(SELECT 1 FROM channel WHERE channel_id = ?)");
+		stmt.setInt(1, userid);
+		stmt.setInt(2, channel_id);
+		stmt.setInt(3, channel_id);
+		ResultSet sql_result = stmt.executeQuery();
+		sql_result.next();
+
+		if (!sql_result.getBoolean(2))
+			return -1;
+
+		return (sql_result.getInt(1) != 0)? 1 : 0;
+	}
 }
@@ -1,8 +1,9 @@
 package handler;
 
+import java.net.HttpURLConnection;
 import org.json.JSONObject;
 
 public class RequestResult {
-	public int response_code;
+	public int response_code = HttpURLConnection.HTTP_OK;
 	public JSONObject response;
 }
@@ -0,0 +1,96 @@
+package handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// serializes json responses straight into the response body.
+// small responses are collected in a reusable buffer and sent with Content-Length,
+// responses larger than the buffer switch to chunked transfer encoding
+public class ResponseWriter {
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int POOL_SIZE = 256;
+
+	private static final ArrayBlockingQueue<byte[]> buffer_pool = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+	public static void write(HttpExchange ex, int response_code, JSONObject response) throws IOException {
+		byte[] buffer = buffer_pool.poll();
+
+		if (buffer == null)
+			buffer = new byte[BUFFER_SIZE];
+
+		try {
+			ResponseStream stream = new ResponseStream(ex, response_code, buffer);
+			Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+
+			try {
+				response.write(writer);
+			} catch (JSONException e){
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+
+				throw e;
+			}
+
+			writer.close();
+		} finally {
+			buffer_pool.offer(buffer);
+		}
+	}
+
+	private static class ResponseStream extends OutputStream {
+		private final HttpExchange ex;
+		private final int response_code;
+		private final byte[] buffer;
+		private int count = 0;
+		private OutputStream body = null; // set once we switched to chunked mode
+
+		ResponseStream(HttpExchange ex, int response_code, byte[] buffer){
+			this.ex = ex;
+			this.response_code = response_code;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			if (body != null){
+				body.write(data, offset, length);
+				return;
+			}
+
+			if (count + length <= buffer.length){
+				System.arraycopy(data, offset, buffer, count, length);
+				count += length;
+				return;
+			}
+
+			// doesn't fit: send headers without length (chunked) and stream from now on
+			ex.sendResponseHeaders(response_code, 0);
+			body = ex.getResponseBody();
+			body.write(buffer, 0, count);
+			body.write(data, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (body == null){
+				ex.sendResponseHeaders(response_code, count);
+				body = ex.getResponseBody();
+				body.write(buffer, 0, count);
+			}
+
+			body.close();
+		}
+	}
+}
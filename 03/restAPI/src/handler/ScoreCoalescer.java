@@ -0,0 +1,312 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// keeps only the latest score intent of a user for a target (video or comment) for a short
+// window and then writes the net change. a like/remove/like burst ends up as one write, or
+// none if the final score is the stored one. the like/dislike changes that aren't written yet
+// are kept per target, so counters read from the database can be corrected with them
+public class ScoreCoalescer {
+	private static class Intent {
+		String stored; // score in the database (null = none)
+		String wanted; // latest score the user asked for
+		final long since;
+
+		Intent(String stored, long since){
+			this.stored = stored;
+			this.wanted = stored;
+			this.since = since;
+		}
+	}
+
+	private final DBHandler dbhandler;
+	private final String score_table;
+	private final String target_table;
+	private final String target_column;
+	private final int window; // milliseconds, 0 = disabled
+
+	// both guarded by this
+	private final HashMap<Long, Intent> pending = new HashMap<Long, Intent>();
+	private final HashMap<Integer, int[]> deltas = new HashMap<Integer, int[]>(); // target -> {likes, dislikes}
+
+	private final LongAdder intents = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private ScheduledExecutorService flusher;
+
+	public ScoreCoalescer(DBHandler dbhandler, String score_table, String target_table, String target_column, int window){
+		this.dbhandler = dbhandler;
+		this.score_table = score_table;
+		this.target_table = target_table;
+		this.target_column = target_column;
+		this.window = window;
+	}
+
+	public boolean isEnabled(){
+		return window > 0;
+	}
+
+	public void start(){
+		if (!isEnabled())
+			return;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory(score_table + "-flusher"));
+		flusher.scheduleWithFixedDelay(() -> flush(false), window, window, TimeUnit.MILLISECONDS);
+	}
+
+	// stops the background flusher and writes all intents
+	public void shutdown(){
+		if (flusher == null)
+			return;
+
+		flusher.shutdown();
+
+		try {
+			flusher.awaitTermination(window * 2L, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		flush(true);
+	}
+
+	// records score (null = remove) as the user's latest intent for target.
+	// returns 1 if the user had a score before, 0 if not or -1 if target doesn't exist
+	public int set(Connection conn, int userid, int target, String score) throws SQLException {
+		long key = ((long) userid << 32) | target;
+
+		synchronized (this){
+			Intent intent = pending.get(key);
+
+			if (intent != null)
+				return update(intent, target, score);
+		}
+
+		// first intent of this key: find out what is stored
+		PreparedStatement stmt = conn.prepareStatement(String.format("SELECT EXISTS(SELECT 1 FROM %s WHERE %s=?),"
+			+ " (SELECT score FROM %s WHERE (%s, userid) = (?,?))",
+			target_table, target_column, score_table, target_column));
+		stmt.setInt(1, target);
+		stmt.setInt(2, target);
+		stmt.setInt(3, userid);
+		ResultSet sql_result = stmt.executeQuery();
+		sql_result.next();
+
+		if (!sql_result.getBoolean(1))
+			return -1;
+
+		String stored = sql_result.getString(2);
+
+		synchronized (this){
+			// another request of the same user may have come first
+			Intent intent = pending.get(key);
+
+			if (intent == null){
+				intent = new Intent(stored, System.nanoTime());
+				pending.put(key, intent);
+			}
+
+			return update(intent, target, score);
+		}
+	}
+
+	// likes/dislikes of target that aren't in the database yet (may be negative)
+	public synchronized int getPendingLikes(int target){
+		int[] delta = deltas.get(target);
+		return (delta == null)? 0 : delta[0];
+	}
+
+	public synchronized int getPendingDislikes(int target){
+		int[] delta = deltas.get(target);
+		return (delta == null)? 0 : delta[1];
+	}
+
+	public synchronized int getPendingCount(){
+		return pending.size();
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge(score_table + "_intents_pending", this::getPendingCount);
+		metrics.registerCounter(score_table + "_intents_total", this::getIntents);
+		metrics.registerCounter(score_table + "_writes_total", this::getWrites);
+	}
+
+	public long getIntents(){
+		return intents.sum();
+	}
+
+	public long getWrites(){
+		return writes.sum();
+	}
+
+	private int update(Intent intent, int target, String score){
+		String previous = intent.wanted;
+
+		addDelta(target, previous, -1);
+		addDelta(target, score, 1);
+		intent.wanted = score;
+		intents.increment();
+
+		return (previous == null)? 0 : 1;
+	}
+
+	private void addDelta(int target, String score, int sign){
+		if (score == null)
+			return;
+
+		int[] delta = deltas.computeIfAbsent(target, (Integer t) -> new int[2]);
+		delta[score.equals("like")? 0 : 1] += sign;
+
+		if (delta[0] == 0 && delta[1] == 0)
+			deltas.remove(target);
+	}
+
+	// writes the intents that waited at least one window (all if force is set)
+	private void flush(boolean force){
+		ArrayList<Long> keys = new ArrayList<Long>();
+		ArrayList<String> scores = new ArrayList<String>();
+		long now = System.nanoTime();
+		long min_age = TimeUnit.MILLISECONDS.toNanos(window);
+
+		synchronized (this){
+			Iterator<Map.Entry<Long, Intent>> it = pending.entrySet().iterator();
+
+			while (it.hasNext()){
+				Map.Entry<Long, Intent> entry = it.next();
+				Intent intent = entry.getValue();
+
+				if (!force && now - intent.since < min_age)
+					continue;
+
+				// toggled back to the stored score: nothing to write
+				if (same(intent.wanted, intent.stored)){
+					it.remove();
+					continue;
+				}
+
+				keys.add(entry.getKey());
+				scores.add(intent.wanted);
+			}
+		}
+
+		if (keys.isEmpty())
+			return;
+
+		Connection conn = null;
+
+		try {
+			conn = dbhandler.getConnection();
+
+			try {
+				conn.setAutoCommit(false);
+				write(conn, keys, scores, 0, keys.size());
+				conn.commit();
+				written(keys, scores, 0, keys.size());
+			} catch (SQLException e){
+				// e.g. a target was deleted: write them one by one and drop the failed ones
+				conn.rollback();
+				conn.setAutoCommit(true);
+
+				for (int i = 0; i < keys.size(); ++i){
+					try {
+						write(conn, keys, scores, i, i + 1);
+					} catch (SQLException e2){
+						System.err.printf("dropping %s intent [%s]\n", score_table, e2.getMessage());
+						dropped(keys.get(i));
+						continue;
+					}
+
+					written(keys, scores, i, i + 1);
+				}
+			}
+
+			conn.close();
+		} catch (SQLException e){
+			System.err.printf("flushing %s intents failed [%s]\n", score_table, e.getMessage());
+
+			if (conn != null){
+				try {
+					conn.close();
+				} catch (SQLException e2){
+					// do nothing
+				}
+			}
+		}
+	}
+
+	// the final score replaces the stored one, no score deletes it
+	private void write(Connection conn, ArrayList<Long> keys, ArrayList<String> scores, int from, int to) throws SQLException {
+		PreparedStatement upsert = conn.prepareStatement(String.format("INSERT INTO %s VALUES(?,?,?::score_t)"
+			+ " ON CONFLICT (%s, userid) DO UPDATE SET score = excluded.score"
+			+ " WHERE %s.score <> excluded.score", score_table, target_column, score_table));
+		PreparedStatement delete = conn.prepareStatement(String.format("DELETE FROM %s WHERE (%s, userid) = (?,?)",
+			score_table, target_column));
+
+		for (int i = from; i < to; ++i){
+			int userid = (int) (keys.get(i) >>> 32);
+			int target = (int) (long) keys.get(i);
+
+			if (scores.get(i) == null){
+				delete.setInt(1, target);
+				delete.setInt(2, userid);
+				delete.addBatch();
+			} else {
+				upsert.setInt(1, target);
+				upsert.setInt(2, userid);
+				upsert.setString(3, scores.get(i));
+				upsert.addBatch();
+			}
+		}
+
+		delete.executeBatch();
+		upsert.executeBatch();
+	}
+
+	private synchronized void written(ArrayList<Long> keys, ArrayList<String> scores, int from, int to){
+		for (int i = from; i < to; ++i){
+			Intent intent = pending.get(keys.get(i));
+			int target = (int) (long) keys.get(i);
+			String score = scores.get(i);
+
+			if (intent == null)
+				continue;
+
+			// what was written is counted by the database now
+			if (!same(intent.stored, score)){
+				addDelta(target, score, -1);
+				addDelta(target, intent.stored, 1);
+				intent.stored = score;
+				writes.increment();
+			}
+
+			// newer intents stay for the next flush
+			if (same(intent.wanted, intent.stored))
+				pending.remove(keys.get(i));
+		}
+	}
+
+	private synchronized void dropped(long key){
+		Intent intent = pending.remove(key);
+
+		if (intent != null){
+			addDelta((int) key, intent.wanted, -1);
+			addDelta((int) key, intent.stored, 1);
+		}
+	}
+
+	private static boolean same(String a, String b){
+		return (a == null)? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,70 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import exec.ExecutorFactory;
+
+// periodically recomputes video/comment like and dislike counters from the score
+// tables (see repair_score_counters() in schema.sql). the triggers keep them in
+// sync, this only fixes drift from manual changes or bugs
+public class ScoreRepair {
+	private final DBHandler dbhandler;
+	private final int interval; // seconds
+	private ScheduledExecutorService scheduler;
+
+	public ScoreRepair(DBHandler dbhandler, int interval){
+		this.dbhandler = dbhandler;
+		this.interval = interval;
+	}
+
+	public void start(){
+		if (interval <= 0)
+			return;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory("score-repair"));
+		scheduler.scheduleWithFixedDelay(this::repair, interval, interval, TimeUnit.SECONDS);
+	}
+
+	public void shutdown(){
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	public void repair(){
+		Connection conn = null;
+
+		try {
+			conn = dbhandler.getConnection();
+
+			// a score written after our snapshot makes the update fail instead of
+			// storing a stale count. we'll try again next time
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			conn.setAutoCommit(false);
+
+			ResultSet sql_result = conn.createStatement().executeQuery("SELECT repair_score_counters()");
+			sql_result.next();
+			int fixed = sql_result.getInt(1);
+
+			conn.commit();
+			conn.close();
+
+			if (fixed > 0)
+				System.err.printf("score counters of %d rows were repaired\n", fixed);
+		} catch (SQLException e){
+			System.err.printf("repairing score counters failed [%s]\n", e.getMessage());
+
+			if (conn != null){
+				try {
+					conn.close();
+				} catch (SQLException e2){
+					// do nothing
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package handler;
+
+import java.util.List;
+import org.json.JSONObject;
+
+// matches of one search. shared between requests through the search cache, so it must not be modified
+public class SearchResult {
+	public final List<JSONObject> videos;
+	public final List<JSONObject> channels;
+	public final List<JSONObject> playlists;
+
+	public SearchResult(List<JSONObject> videos, List<JSONObject> channels, List<JSONObject> playlists){
+		this.videos = videos;
+		this.channels = channels;
+		this.playlists = playlists;
+	}
+}
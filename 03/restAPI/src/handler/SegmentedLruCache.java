@@ -0,0 +1,123 @@
+package handler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// bounded cache with segmented LRU eviction. new entries start in the probation
+// segment and move to the protected segment on their second hit, so a burst of
+// one-time keys can't push out the hot ones
+public class SegmentedLruCache<K, V> {
+	private final int probation_size;
+	private final int protected_size;
+
+	// access-ordered: the first entry is the least recently used one
+	private final LinkedHashMap<K, V> probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final LinkedHashMap<K, V> protected_segment = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	// 80% of max_size is reserved for entries that were hit at least once
+	public SegmentedLruCache(int max_size){
+		protected_size = max_size * 4 / 5;
+		probation_size = max_size - protected_size;
+	}
+
+	public boolean isEnabled(){
+		return probation_size > 0;
+	}
+
+	public V get(K key){
+		if (!isEnabled())
+			return null;
+
+		V value;
+
+		synchronized (this){
+			value = protected_segment.get(key);
+
+			if (value == null){
+				value = probation.remove(key);
+
+				if (value != null)
+					promote(key, value);
+			}
+		}
+
+		if (value == null)
+			misses.increment();
+		else
+			hits.increment();
+
+		return value;
+	}
+
+	public synchronized void put(K key, V value){
+		if (!isEnabled())
+			return;
+
+		if (protected_segment.containsKey(key)){
+			protected_segment.put(key, value);
+			return;
+		}
+
+		probation.put(key, value);
+		trim(probation, probation_size);
+	}
+
+	public synchronized void remove(K key){
+		probation.remove(key);
+		protected_segment.remove(key);
+	}
+
+	public void registerMetrics(Metrics metrics, String prefix){
+		metrics.registerGauge(prefix + "_size", this::getSize);
+		metrics.registerCounter(prefix + "_hits_total", this::getHits);
+		metrics.registerCounter(prefix + "_misses_total", this::getMisses);
+		metrics.registerCounter(prefix + "_evictions_total", this::getEvictions);
+	}
+
+	public long getHits(){
+		return hits.sum();
+	}
+
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	public long getEvictions(){
+		return evictions.sum();
+	}
+
+	public synchronized int getSize(){
+		return probation.size() + protected_segment.size();
+	}
+
+	// entries pushed out of the protected segment get another chance in probation
+	private void promote(K key, V value){
+		protected_segment.put(key, value);
+
+		if (protected_segment.size() <= protected_size)
+			return;
+
+		Iterator<Map.Entry<K, V>> it = protected_segment.entrySet().iterator();
+		Map.Entry<K, V> oldest = it.next();
+		it.remove();
+
+		probation.put(oldest.getKey(), oldest.getValue());
+		trim(probation, probation_size);
+	}
+
+	private void trim(LinkedHashMap<K, V> segment, int max_size){
+		Iterator<Map.Entry<K, V>> it = segment.entrySet().iterator();
+
+		while (segment.size() > max_size && it.hasNext()){
+			it.next();
+			it.remove();
+			evictions.increment();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package handler;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// in-memory copy of userlogin rows: userid -> token.
+// a session read from the database is cached only if no logout happened since the read
+// started (see getEpoch), so a logout racing with a lookup can't leave its token cached
+public class SessionCache {
+	private static final int EPOCH_STRIPES = 256;
+
+	private final ConcurrentHashMap<Integer, Entry> sessions = new ConcurrentHashMap<Integer, Entry>();
+	private final AtomicLongArray epochs = new AtomicLongArray(EPOCH_STRIPES); // logouts per userid stripe
+	private final int max_size;
+	private final long ttl_nanos;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		final String token;
+		final long expire_time;
+
+		Entry(String token, long expire_time){
+			this.token = token;
+			this.expire_time = expire_time;
+		}
+	}
+
+	public SessionCache(int max_size, int ttl_seconds){
+		this.max_size = max_size;
+		this.ttl_nanos = ttl_seconds * 1_000_000_000L;
+	}
+
+	public boolean isEnabled(){
+		return max_size > 0;
+	}
+
+	// returns true if (userid, token) is a known valid session
+	public boolean contains(int userid, String token){
+		if (!isEnabled())
+			return false;
+
+		Entry entry = sessions.get(userid);
+
+		if (entry != null && entry.token.equals(token)){
+			if (entry.expire_time - System.nanoTime() > 0){
+				hits.incrementAndGet();
+				return true;
+			}
+
+			sessions.remove(userid, entry);
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+	// like contains(), but not counted as a hit or miss
+	public boolean peek(int userid, String token){
+		Entry entry = sessions.get(userid);
+		return entry != null && entry.token.equals(token) && entry.expire_time - System.nanoTime() > 0;
+	}
+
+	// call before reading a session from the database, and pass the result to put()
+	public long getEpoch(int userid){
+		return epochs.get(stripe(userid));
+	}
+
+	// max_age: seconds until the session expires, a cached copy doesn't outlive it.
+	// nothing is cached if userid's stripe had a logout after epoch was read
+	public void put(int userid, String token, long max_age, long epoch){
+		if (!isEnabled() || max_age <= 0)
+			return;
+
+		Entry entry = new Entry(token, System.nanoTime() + Math.min(ttl_nanos, max_age * 1_000_000_000L));
+
+		// remove() bumps the epoch before it removes, so either we see the new epoch
+		// or our entry is removed after us
+		sessions.compute(userid, (Integer key, Entry old) -> (epochs.get(stripe(userid)) == epoch)? entry : old);
+
+		if (sessions.size() > max_size)
+			evict();
+	}
+
+	public void remove(int userid){
+		epochs.incrementAndGet(stripe(userid));
+		sessions.remove(userid);
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("session_cache_size", this::getSize);
+		metrics.registerCounter("session_cache_hits_total", this::getHits);
+		metrics.registerCounter("session_cache_misses_total", this::getMisses);
+		metrics.registerCounter("session_cache_evictions_total", this::getEvictions);
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	public int getSize(){
+		return sessions.size();
+	}
+
+	private static int stripe(int userid){
+		return userid & (EPOCH_STRIPES - 1);
+	}
+
+	private void evict(){
+		// drop expired sessions first, then arbitrary ones until we are 10% below the limit
+		long now = System.nanoTime();
+		int target = max_size - max_size / 10;
+
+		Iterator<Map.Entry<Integer, Entry>> it = sessions.entrySet().iterator();
+		while (it.hasNext()){
+			if (it.next().getValue().expire_time - now <= 0){
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		it = sessions.entrySet().iterator();
+		while (sessions.size() > target && it.hasNext()){
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+}
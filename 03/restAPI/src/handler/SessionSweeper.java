@@ -0,0 +1,98 @@
+package handler;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// periodically deletes expired userlogin rows. each batch is its own short transaction
+// that skips rows locked by a login/logout, and the sweep backs off as soon as requests
+// are waiting for a db connection, so it only uses idle capacity
+public class SessionSweeper {
+	private static final int BATCH_PAUSE = 50; // milliseconds between batches
+
+	private final DBHandler dbhandler;
+	private final int interval; // seconds, 0 = never
+	private final int batch_size;
+	private ScheduledExecutorService scheduler;
+
+	private final LongAdder deleted = new LongAdder();
+
+	public SessionSweeper(DBHandler dbhandler, int interval, int batch_size){
+		this.dbhandler = dbhandler;
+		this.interval = interval;
+		this.batch_size = batch_size;
+	}
+
+	public void start(){
+		if (interval <= 0)
+			return;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory("session-sweeper"));
+		scheduler.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.SECONDS);
+	}
+
+	public void shutdown(){
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerCounter("sessions_swept_total", this::getDeleted);
+	}
+
+	public long getDeleted(){
+		return deleted.sum();
+	}
+
+	private void sweep(){
+		while (!isBusy()){
+			int count;
+
+			try {
+				count = deleteBatch();
+			} catch (SQLException e){
+				System.err.printf("deleting expired sessions failed [%s]\n", e.getMessage());
+				return;
+			}
+
+			deleted.add(count);
+
+			if (count < batch_size)
+				return;
+
+			try {
+				Thread.sleep(BATCH_PAUSE);
+			} catch (InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	// requests are waiting for connections, the rest waits for the next sweep
+	private boolean isBusy(){
+		HikariPoolMXBean pool = dbhandler.getPoolStats();
+		return pool != null && pool.getThreadsAwaitingConnection() > 0;
+	}
+
+	private int deleteBatch() throws SQLException {
+		Connection conn = dbhandler.getConnection();
+
+		try {
+			// the expires_at index finds the rows, ctid deletes them without a second lookup
+			PreparedStatement stmt = conn.prepareStatement("DELETE FROM userlogin WHERE ctid = ANY(ARRAY("
+				+ "SELECT ctid FROM userlogin WHERE expires_at <= now() LIMIT ? FOR UPDATE SKIP LOCKED))");
+			stmt.setInt(1, batch_size);
+
+			return stmt.executeUpdate();
+		} finally {
+			conn.close();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package handler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// stateless session tokens: <issued>.<generation>.<mac>, the mac is HMAC-SHA256 of
+// "userid.issued.generation" with the server secret. a valid mac proves the server made
+// the token, so no userlogin row is needed. logout bumps users.session_generation, which
+// revokes every token of the user made before. generations are cached (they only grow),
+// a token is checked against the database only on a cache miss. tokens older than ttl
+// are expired
+public class SignedTokens {
+	private static final String ALGORITHM = "HmacSHA256";
+
+	public static class Token {
+		public final int userid;
+		public final long issued; // seconds since epoch
+		public final int generation;
+
+		public long getAge(){
+			return System.currentTimeMillis() / 1000 - issued;
+		}
+
+		Token(int userid, long issued, int generation){
+			this.userid = userid;
+			this.issued = issued;
+			this.generation = generation;
+		}
+	}
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final ConcurrentHashMap<Integer, Integer> generations = new ConcurrentHashMap<Integer, Integer>();
+	private final int max_size;
+	private final int ttl; // seconds
+
+	private final LongAdder invalid = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder revoked = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public SignedTokens(byte[] secret, int max_size, int ttl){
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+		this.max_size = Math.max(max_size, 1);
+		this.ttl = ttl;
+
+		macs = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(key);
+				return mac;
+			} catch (NoSuchAlgorithmException | InvalidKeyException e){
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	// tokens made by userlogin have no dots
+	public static boolean isSigned(String token){
+		return token.indexOf('.') >= 0;
+	}
+
+	public String issue(int userid, int generation){
+		long issued = System.currentTimeMillis() / 1000;
+		return String.format("%d.%d.%s", issued, generation, sign(userid, issued, generation));
+	}
+
+	// null if the token wasn't made by this server (or for another user) or has expired
+	public Token parse(int userid, String token){
+		Token parsed = decode(userid, token);
+
+		if (parsed == null){
+			invalid.increment();
+			return null;
+		}
+
+		if (parsed.getAge() > ttl){
+			expired.increment();
+			return null;
+		}
+
+		return parsed;
+	}
+
+	// current generation of userid, null if it isn't cached
+	public Integer getGeneration(int userid){
+		Integer generation = generations.get(userid);
+
+		if (generation == null)
+			misses.increment();
+
+		return generation;
+	}
+
+	// generations never go back, a late reader can't undo a logout
+	public void setGeneration(int userid, int generation){
+		generations.merge(userid, generation, Math::max);
+
+		if (generations.size() > max_size)
+			evict();
+	}
+
+	// false (and counted) if the user logged out after token was made
+	public boolean isCurrent(Token token, int generation){
+		if (token.generation == generation)
+			return true;
+
+		revoked.increment();
+		return false;
+	}
+
+	// parse() + isCurrent() with the cached generation, without touching the counters
+	public boolean peek(int userid, String token){
+		Token parsed = decode(userid, token);
+
+		return parsed != null && parsed.getAge() <= ttl
+			&& Integer.valueOf(parsed.generation).equals(generations.get(userid));
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("session_generations_cached", this::getSize);
+		metrics.registerCounter("session_generation_misses_total", this::getMisses);
+		metrics.registerCounter("signed_tokens_invalid_total", this::getInvalid);
+		metrics.registerCounter("signed_tokens_expired_total", this::getExpired);
+		metrics.registerCounter("signed_tokens_revoked_total", this::getRevoked);
+	}
+
+	public long getInvalid(){
+		return invalid.sum();
+	}
+
+	public long getExpired(){
+		return expired.sum();
+	}
+
+	public long getRevoked(){
+		return revoked.sum();
+	}
+
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	public int getSize(){
+		return generations.size();
+	}
+
+	private Token decode(int userid, String token){
+		String[] parts = token.split("\\.");
+
+		if (parts.length != 3)
+			return null;
+
+		try {
+			long issued = Long.parseLong(parts[0]);
+			int generation = Integer.parseInt(parts[1]);
+			byte[] expected = sign(userid, issued, generation).getBytes(StandardCharsets.US_ASCII);
+
+			if (MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.US_ASCII)))
+				return new Token(userid, issued, generation);
+		} catch (NumberFormatException e){
+			// fall through
+		}
+
+		return null;
+	}
+
+	private String sign(int userid, long issued, int generation){
+		Mac mac = macs.get();
+		byte[] digest = mac.doFinal(String.format("%d.%d.%d", userid, issued, generation).getBytes(StandardCharsets.US_ASCII));
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+	}
+
+	// dropped generations are read again from the database when needed
+	private void evict(){
+		int target = max_size - max_size / 10;
+		Iterator<Integer> it = generations.keySet().iterator();
+
+		while (generations.size() > target && it.hasNext()){
+			it.next();
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package handler;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// cache for query results with a time to live. concurrent misses of one key
+// share a single load. invalidateAll() makes every entry stale at once
+public class SingleFlightCache<V> {
+	public interface Loader<V> {
+		V load() throws SQLException;
+	}
+
+	private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+	private final int max_size;
+	private final long ttl_nanos;
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder shared_loads = new LongAdder(); // misses that waited for another request's load
+
+	private static class Entry<V> {
+		final CompletableFuture<V> value = new CompletableFuture<V>();
+		final long generation;
+		final long expire_time;
+
+		Entry(long generation, long expire_time){
+			this.generation = generation;
+			this.expire_time = expire_time;
+		}
+
+		boolean isValid(long generation, long now){
+			return this.generation == generation && expire_time - now > 0 && !value.isCompletedExceptionally();
+		}
+	}
+
+	public SingleFlightCache(int max_size, int ttl_seconds){
+		this.max_size = max_size;
+		this.ttl_nanos = ttl_seconds * 1_000_000_000L;
+	}
+
+	public V get(String key, Loader<V> loader) throws SQLException {
+		if (max_size <= 0)
+			return loader.load();
+
+		long now = System.nanoTime();
+		long current_generation = generation.get();
+		Entry<V> fresh = new Entry<V>(current_generation, now + ttl_nanos);
+
+		Entry<V> entry = entries.compute(key, (String k, Entry<V> old) ->
+			(old != null && old.isValid(current_generation, now))? old : fresh);
+
+		if (entry != fresh){
+			if (entry.value.isDone())
+				hits.increment();
+			else
+				shared_loads.increment();
+
+			return await(entry);
+		}
+
+		misses.increment();
+
+		if (entries.size() > max_size)
+			evict(now);
+
+		try {
+			V value = loader.load();
+			entry.value.complete(value);
+			return value;
+		} catch (SQLException | RuntimeException e){
+			// waiting requests get the error too, the next one tries again
+			entry.value.completeExceptionally(e);
+			entries.remove(key, entry);
+			throw e;
+		}
+	}
+
+	// entries created before this call are not used any more
+	public void invalidateAll(){
+		generation.incrementAndGet();
+	}
+
+	public void registerMetrics(Metrics metrics, String prefix){
+		metrics.registerGauge(prefix + "_size", this::getSize);
+		metrics.registerCounter(prefix + "_hits_total", this::getHits);
+		metrics.registerCounter(prefix + "_misses_total", this::getMisses);
+		metrics.registerCounter(prefix + "_shared_loads_total", this::getSharedLoads);
+	}
+
+	public long getHits(){
+		return hits.sum();
+	}
+
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	public long getSharedLoads(){
+		return shared_loads.sum();
+	}
+
+	public int getSize(){
+		return entries.size();
+	}
+
+	private V await(Entry<V> entry) throws SQLException {
+		try {
+			return entry.value.get();
+		} catch (ExecutionException e){
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+
+			throw new SQLException(e.getCause());
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted");
+		}
+	}
+
+	// drop stale entries first, then arbitrary ones until we are 10% below the limit
+	private void evict(long now){
+		long current_generation = generation.get();
+		int target = max_size - max_size / 10;
+
+		Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator();
+		while (it.hasNext()){
+			Entry<V> entry = it.next().getValue();
+
+			if (entry.value.isDone() && !entry.isValid(current_generation, now))
+				it.remove();
+		}
+
+		it = entries.entrySet().iterator();
+		while (entries.size() > target && it.hasNext()){
+			if (it.next().getValue().value.isDone())
+				it.remove();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package handler;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+
+// maps constraint violations reported by postgres to the constraint that failed,
+// so a write can be tried first and its error turned into a user message
+public class SqlErrors {
+	public static final String UNIQUE_VIOLATION = "23505";
+	public static final String FOREIGN_KEY_VIOLATION = "23503";
+	public static final String SYNTAX_ERROR = "42601";
+	public static final String SERVER_BUSY = "57P03"; // set on our own load-shedding errors
+
+	// returns the name of the violated constraint if e is a violation of the given kind, otherwise null
+	public static String getViolatedConstraint(SQLException e, String sql_state){
+		if (!sql_state.equals(e.getSQLState()) || !(e instanceof PSQLException))
+			return null;
+
+		ServerErrorMessage message = ((PSQLException) e).getServerErrorMessage();
+		return (message == null)? null : message.getConstraint();
+	}
+
+	public static boolean isViolation(SQLException e, String sql_state, String constraint){
+		return constraint.equals(getViolatedConstraint(e, sql_state));
+	}
+
+	// true if e means no connection was available (shed, pool or quota timeout), not a query failure
+	public static boolean isUnavailable(SQLException e){
+		return SERVER_BUSY.equals(e.getSQLState()) || e instanceof SQLTransientConnectionException;
+	}
+}
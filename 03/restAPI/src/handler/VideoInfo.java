@@ -0,0 +1,23 @@
+package handler;
+
+// fields of a video that don't change after upload (cached by getVideo)
+public class VideoInfo {
+	public final String name;
+	public final String filename;
+	public final int uploader_id;
+	public final String uploader_username;
+	public final String description;
+	public final int duration;
+	public final String upload_date;
+
+	public VideoInfo(String name, String filename, int uploader_id, String uploader_username,
+			String description, int duration, String upload_date){
+		this.name = name;
+		this.filename = filename;
+		this.uploader_id = uploader_id;
+		this.uploader_username = uploader_username;
+		this.description = description;
+		this.duration = duration;
+		this.upload_date = upload_date;
+	}
+}
@@ -0,0 +1,173 @@
+package handler;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import exec.ExecutorFactory;
+
+// buffers video views in memory and adds them to video.total_watch in batches.
+// views go to striped counters in the current map without locking. flush() swaps in
+// an empty map and writes the old one, which stays readable (and catches late adds)
+// until the next flush
+public class ViewCounter {
+	private static class Maps {
+		final ConcurrentHashMap<Integer, LongAdder> current;
+		final ConcurrentHashMap<Integer, LongAdder> flushing; // swapped out by the last flush
+
+		Maps(ConcurrentHashMap<Integer, LongAdder> current, ConcurrentHashMap<Integer, LongAdder> flushing){
+			this.current = current;
+			this.flushing = flushing;
+		}
+	}
+
+	private final DBHandler dbhandler;
+	private final int flush_interval; // milliseconds
+	private volatile Maps maps = new Maps(new ConcurrentHashMap<Integer, LongAdder>(), new ConcurrentHashMap<Integer, LongAdder>());
+	private ScheduledExecutorService flusher;
+
+	public ViewCounter(DBHandler dbhandler, int flush_interval){
+		this.dbhandler = dbhandler;
+		this.flush_interval = flush_interval;
+	}
+
+	public void start(){
+		flusher = Executors.newSingleThreadScheduledExecutor(new ExecutorFactory.NamedThreadFactory("view-flusher"));
+		flusher.scheduleWithFixedDelay(this::flush, flush_interval, flush_interval, TimeUnit.MILLISECONDS);
+	}
+
+	// stops the background flusher and writes whatever is left
+	public void shutdown(){
+		if (flusher != null){
+			flusher.shutdown();
+
+			try {
+				flusher.awaitTermination(flush_interval * 2L, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		flush();
+	}
+
+	public void add(int videoid){
+		ConcurrentHashMap<Integer, LongAdder> current = maps.current;
+		LongAdder counter = current.get(videoid);
+
+		if (counter == null)
+			counter = current.computeIfAbsent(videoid, (Integer id) -> new LongAdder());
+
+		counter.increment();
+	}
+
+	// views that aren't written to database yet
+	public long getPending(int videoid){
+		Maps snapshot = maps;
+		return getSum(snapshot.current, videoid) + getSum(snapshot.flushing, videoid);
+	}
+
+	public long getPendingTotal(){
+		Maps snapshot = maps;
+		long total = 0;
+
+		for (LongAdder counter : snapshot.current.values())
+			total += counter.sum();
+
+		for (LongAdder counter : snapshot.flushing.values())
+			total += counter.sum();
+
+		return total;
+	}
+
+	public void registerMetrics(Metrics metrics){
+		metrics.registerGauge("video_views_pending", this::getPendingTotal);
+	}
+
+	public void remove(int videoid){
+		Maps snapshot = maps;
+		snapshot.current.remove(videoid);
+		snapshot.flushing.remove(videoid);
+	}
+
+	public synchronized void flush(){
+		Maps old = maps;
+		ConcurrentHashMap<Integer, LongAdder> batch = old.current;
+		maps = new Maps(new ConcurrentHashMap<Integer, LongAdder>(), batch);
+
+		// what is left in the previous batch (failed writes, adds that raced the last swap)
+		// goes into this one. nobody reads the previous batch anymore
+		for (Map.Entry<Integer, LongAdder> entry : old.flushing.entrySet()){
+			long left = entry.getValue().sumThenReset();
+
+			if (left != 0)
+				batch.computeIfAbsent(entry.getKey(), (Integer id) -> new LongAdder()).add(left);
+		}
+
+		ArrayList<Integer> videos = new ArrayList<Integer>();
+		ArrayList<Integer> deltas = new ArrayList<Integer>();
+
+		for (Map.Entry<Integer, LongAdder> entry : batch.entrySet()){
+			int delta = (int) Math.min(entry.getValue().sum(), Integer.MAX_VALUE);
+
+			if (delta > 0){
+				videos.add(entry.getKey());
+				deltas.add(delta);
+			}
+		}
+
+		if (videos.isEmpty())
+			return;
+
+		Connection conn = null;
+
+		try {
+			conn = dbhandler.getConnection();
+			conn.setAutoCommit(false);
+
+			PreparedStatement stmt = conn.prepareStatement("UPDATE video SET total_watch = total_watch+? WHERE video_id=?");
+
+			for (int i = 0; i < videos.size(); ++i){
+				stmt.setInt(1, deltas.get(i));
+				stmt.setInt(2, videos.get(i));
+				stmt.addBatch();
+			}
+
+			stmt.executeBatch();
+			conn.commit();
+			conn.close();
+		} catch (SQLException e){
+			System.err.printf("flushing video views failed [%s]\n", e.getMessage());
+
+			if (conn != null){
+				try {
+					conn.close();
+				} catch (SQLException e2){
+					// do nothing
+				}
+			}
+
+			return; // the batch is carried over by the next flush
+		}
+
+		// subtract only what was written, late adds stay for the next flush
+		for (int i = 0; i < videos.size(); ++i){
+			LongAdder counter = batch.get(videos.get(i));
+
+			if (counter != null) // null if the video was deleted meanwhile
+				counter.add(-deltas.get(i));
+		}
+	}
+
+	private static long getSum(ConcurrentHashMap<Integer, LongAdder> map, int videoid){
+		LongAdder counter = map.get(videoid);
+		return (counter == null)? 0 : counter.sum();
+	}
+}